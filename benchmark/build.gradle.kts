@@ -0,0 +1,70 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2026 LSPosed Contributors
+ */
+
+plugins {
+    java
+    alias(libs.plugins.jmh)
+}
+
+// Pure Java sources of :core exercised by the benchmarks. Everything they touch from the
+// Android framework or the native bridge is replaced by the stubs in src/main/java.
+val coreSources = listOf(
+    "de/robv/android/xposed/IXposedHookZygoteInit.java",
+    "de/robv/android/xposed/IXposedMod.java",
+    "de/robv/android/xposed/XC_MethodHook.java",
+    "de/robv/android/xposed/XposedBridge.java",
+    "de/robv/android/xposed/XposedHelpers.java",
+    "de/robv/android/xposed/callbacks/IXUnhook.java",
+    "de/robv/android/xposed/callbacks/XCallback.java",
+    "org/apache/commons/lang3/reflect/MemberUtilsX.java",
+    "org/lsposed/lspd/impl/LSPosedRemotePreferences.java",
+    "org/lsposed/lspd/util/ConcurrentWeakIdentityMap.java",
+)
+
+// Pure Java sources of :services:daemon-service that the core sources above depend on.
+val daemonServiceSources = listOf(
+    "org/lsposed/lspd/util/PreferenceDelta.java",
+    "org/lsposed/lspd/util/PrefsSnapshot.java",
+)
+
+val syncCoreSources by tasks.registering(Sync::class) {
+    from(rootProject.file("core/src/main/java")) {
+        include(coreSources)
+    }
+    from(rootProject.file("services/daemon-service/src/main/java")) {
+        include(daemonServiceSources)
+    }
+    into(layout.buildDirectory.dir("generated/sources/core"))
+}
+
+sourceSets {
+    main {
+        java.srcDir(syncCoreSources)
+    }
+}
+
+jmh {
+    jmhVersion = libs.versions.jmh
+    profilers = listOf("gc")
+    resultFormat = "JSON"
+}
+
+dependencies {
+    implementation(libs.commons.lang3)
+}
@@ -0,0 +1,113 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2026 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import de.robv.android.xposed.XposedBridge.CopyOnWriteSortedSet;
+import de.robv.android.xposed.callbacks.XCallback;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CopyOnWriteSortedSetBenchmark {
+
+    // Same ordering as XC_LayoutInflated, the only comparable callback stored in these sets
+    static final class Callback extends XCallback implements Comparable<Callback> {
+        Callback(int priority) {
+            super(priority);
+        }
+
+        @Override
+        public int compareTo(Callback other) {
+            if (this == other)
+                return 0;
+            if (other.priority != this.priority)
+                return other.priority - this.priority;
+            else if (System.identityHashCode(this) < System.identityHashCode(other))
+                return -1;
+            else
+                return 1;
+        }
+    }
+
+    @Param({"16", "256"})
+    public int size;
+
+    private Callback[] callbacks;
+    private CopyOnWriteSortedSet<Callback> populated;
+
+    @Setup(Level.Trial)
+    public void createCallbacks() {
+        callbacks = new Callback[size];
+        for (int i = 0; i < size; i++) {
+            callbacks[i] = new Callback(i % 7 * 10);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void populate() {
+        populated = new CopyOnWriteSortedSet<>();
+        for (var callback : callbacks) {
+            populated.add(callback);
+        }
+    }
+
+    @Benchmark
+    public CopyOnWriteSortedSet<Callback> addAll() {
+        var set = new CopyOnWriteSortedSet<Callback>();
+        for (var callback : callbacks) {
+            set.add(callback);
+        }
+        return set;
+    }
+
+    @Benchmark
+    public CopyOnWriteSortedSet<Callback> addAllBulk() {
+        var set = new CopyOnWriteSortedSet<Callback>();
+        set.addAll(Arrays.asList(callbacks));
+        return set;
+    }
+
+    @Benchmark
+    public CopyOnWriteSortedSet<Callback> removeAll() {
+        for (var callback : callbacks) {
+            populated.remove(callback);
+        }
+        return populated;
+    }
+}
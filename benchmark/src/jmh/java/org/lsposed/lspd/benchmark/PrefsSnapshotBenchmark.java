@@ -0,0 +1,98 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2026 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.benchmark;
+
+import org.lsposed.lspd.util.PrefsSnapshot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrefsSnapshotBenchmark {
+
+    private File file;
+    private PrefsSnapshot snapshot;
+    private Map<String, Object> decoded;
+
+    @Setup
+    public void setup() throws IOException {
+        var map = new HashMap<String, Object>();
+        for (int i = 0; i < 64; i++) {
+            map.put("string_" + i, "value_" + i);
+            map.put("int_" + i, i);
+            map.put("set_" + i, new HashSet<>(List.of("a_" + i, "b_" + i)));
+        }
+        file = File.createTempFile("prefs", PrefsSnapshot.SUFFIX);
+        try (var stream = new FileOutputStream(file)) {
+            PrefsSnapshot.write(stream, map, 0, 0, 0);
+        }
+        snapshot = PrefsSnapshot.open(file);
+        decoded = snapshot.decode();
+    }
+
+    @TearDown
+    public void tearDown() {
+        // noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Benchmark
+    public Object snapshotGet() {
+        return snapshot.get("string_42");
+    }
+
+    @Benchmark
+    public boolean snapshotContainsKey() {
+        return snapshot.containsKey("int_42");
+    }
+
+    @Benchmark
+    public Object decodedGet() {
+        return decoded.get("string_42");
+    }
+
+    // Mapping the file is left out, unmapping is up to the GC and the mappings would pile up
+    @Benchmark
+    public Map<String, Object> decode() throws IOException {
+        return snapshot.decode();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2026 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.benchmark;
+
+import android.os.RemoteException;
+
+import org.lsposed.lspd.impl.LSPosedRemotePreferences;
+import org.lsposed.lspd.util.PreferenceDelta;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RemotePreferencesBenchmark {
+
+    private LSPosedRemotePreferences prefs;
+
+    @Setup
+    public void setup() throws RemoteException {
+        var map = new HashMap<String, Object>();
+        for (int i = 0; i < 64; i++) {
+            map.put("string_" + i, "value_" + i);
+            map.put("int_" + i, i);
+            map.put("boolean_" + i, i % 2 == 0);
+        }
+        var encoded = PreferenceDelta.encode(map);
+        prefs = new LSPosedRemotePreferences((group, callback) -> encoded, "benchmark");
+    }
+
+    @Benchmark
+    public String getString() {
+        return prefs.getString("string_42", null);
+    }
+
+    @Benchmark
+    public int getInt() {
+        return prefs.getInt("int_42", 0);
+    }
+
+    @Benchmark
+    public boolean getBooleanMissing() {
+        return prefs.getBoolean("missing", false);
+    }
+
+    @Benchmark
+    public Map<String, ?> getAll() {
+        return prefs.getAll();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2026 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import de.robv.android.xposed.XposedHelpers;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XposedHelpersBenchmark {
+
+    @SuppressWarnings("unused")
+    public static class Target {
+        private int counter = 42;
+        private String name = "LSPosed";
+
+        private int add(int a, int b) {
+            return a + b;
+        }
+
+        private String greet(String who) {
+            return name + who;
+        }
+    }
+
+    private final Target target = new Target();
+
+    @Benchmark
+    public Method findMethodExact() {
+        return XposedHelpers.findMethodExact(Target.class, "add", int.class, int.class);
+    }
+
+    @Benchmark
+    public Method findMethodBestMatch() {
+        return XposedHelpers.findMethodBestMatch(Target.class, "greet", String.class);
+    }
+
+    @Benchmark
+    public Field findField() {
+        return XposedHelpers.findField(Target.class, "name");
+    }
+
+    @Benchmark
+    public Object callMethod() {
+        return XposedHelpers.callMethod(target, "add", 1, 2);
+    }
+
+    @Benchmark
+    public Object getObjectField() {
+        return XposedHelpers.getObjectField(target, "name");
+    }
+
+    @Benchmark
+    public int getIntField() {
+        return XposedHelpers.getIntField(target, "counter");
+    }
+}
@@ -0,0 +1,4 @@
+package android.app;
+
+public final class ActivityThread {
+}
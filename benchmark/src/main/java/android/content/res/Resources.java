@@ -0,0 +1,22 @@
+package android.content.res;
+
+public class Resources {
+    public static Resources getSystem() {
+        throw new UnsupportedOperationException("STUB");
+    }
+
+    public AssetManager getAssets() {
+        throw new UnsupportedOperationException("STUB");
+    }
+
+    public int getIdentifier(String name, String defType, String defPackage) {
+        throw new UnsupportedOperationException("STUB");
+    }
+
+    public TypedArray obtainTypedArray(int id) throws NotFoundException {
+        throw new UnsupportedOperationException("STUB");
+    }
+
+    public static class NotFoundException extends RuntimeException {
+    }
+}
@@ -0,0 +1,7 @@
+package android.content.res;
+
+public class TypedArray {
+    public void recycle() {
+        throw new UnsupportedOperationException("STUB");
+    }
+}
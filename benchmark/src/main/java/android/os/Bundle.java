@@ -0,0 +1,20 @@
+package android.os;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+public class Bundle {
+    private final HashMap<String, Object> map = new HashMap<>();
+
+    public boolean containsKey(String key) {
+        return map.containsKey(key);
+    }
+
+    public Serializable getSerializable(String key) {
+        return (Serializable) map.get(key);
+    }
+
+    public void putSerializable(String key, Serializable value) {
+        map.put(key, value);
+    }
+}
@@ -0,0 +1,24 @@
+package android.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public final class Log {
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+
+    public static String getStackTraceString(Throwable tr) {
+        var sw = new StringWriter();
+        tr.printStackTrace(new PrintWriter(sw));
+        return sw.toString();
+    }
+}
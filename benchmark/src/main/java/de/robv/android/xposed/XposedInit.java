@@ -0,0 +1,5 @@
+package de.robv.android.xposed;
+
+public final class XposedInit {
+    public static volatile boolean disableResources = false;
+}
@@ -0,0 +1,4 @@
+package de.robv.android.xposed.callbacks;
+
+public abstract class XC_InitPackageResources extends XCallback {
+}
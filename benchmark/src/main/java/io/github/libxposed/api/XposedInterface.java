@@ -0,0 +1,5 @@
+package io.github.libxposed.api;
+
+public interface XposedInterface {
+    int API = 100;
+}
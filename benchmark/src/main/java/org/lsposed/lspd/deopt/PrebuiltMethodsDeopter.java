@@ -0,0 +1,6 @@
+package org.lsposed.lspd.deopt;
+
+public class PrebuiltMethodsDeopter {
+    public static void deoptMethods(String where, ClassLoader cl) {
+    }
+}
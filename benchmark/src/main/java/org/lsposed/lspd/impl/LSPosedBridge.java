@@ -0,0 +1,10 @@
+package org.lsposed.lspd.impl;
+
+public class LSPosedBridge {
+    public static class NativeHooker {
+    }
+
+    public static char[] getExecutableShorty(java.lang.reflect.Executable executable) {
+        throw new UnsupportedOperationException("STUB");
+    }
+}
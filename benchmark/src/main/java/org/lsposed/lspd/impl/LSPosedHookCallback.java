@@ -0,0 +1,18 @@
+package org.lsposed.lspd.impl;
+
+import java.lang.reflect.Executable;
+import java.lang.reflect.Member;
+
+public class LSPosedHookCallback<T extends Executable> {
+    public Member method;
+
+    public Object thisObject;
+
+    public Object[] args;
+
+    public Object result;
+
+    public Throwable throwable;
+
+    public boolean isSkipped;
+}
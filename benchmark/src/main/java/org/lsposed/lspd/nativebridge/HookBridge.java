@@ -0,0 +1,21 @@
+package org.lsposed.lspd.nativebridge;
+
+import java.lang.reflect.Executable;
+
+public class HookBridge {
+    public static boolean hookMethod(boolean useModernApi, Executable hookMethod, Class<?> hooker, int priority, Object callback, char[] shorty) {
+        throw new UnsupportedOperationException("STUB");
+    }
+
+    public static boolean unhookMethod(boolean useModernApi, Executable hookMethod, Object callback) {
+        throw new UnsupportedOperationException("STUB");
+    }
+
+    public static boolean deoptimizeMethod(Executable method) {
+        throw new UnsupportedOperationException("STUB");
+    }
+
+    public static Object invokeOriginalMethod(Executable method, Object thisObject, Object... args) {
+        throw new UnsupportedOperationException("STUB");
+    }
+}
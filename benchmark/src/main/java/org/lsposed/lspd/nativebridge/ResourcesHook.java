@@ -0,0 +1,11 @@
+package org.lsposed.lspd.nativebridge;
+
+public class ResourcesHook {
+    public static boolean makeInheritable(Class<?> clazz) {
+        throw new UnsupportedOperationException("STUB");
+    }
+
+    public static ClassLoader buildDummyClassLoader(ClassLoader parent, String resourceSuperClass, String typedArraySuperClass) {
+        throw new UnsupportedOperationException("STUB");
+    }
+}
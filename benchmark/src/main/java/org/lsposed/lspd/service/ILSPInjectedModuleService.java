@@ -0,0 +1,7 @@
+package org.lsposed.lspd.service;
+
+import android.os.RemoteException;
+
+public interface ILSPInjectedModuleService {
+    byte[] requestRemotePreferences(String group, IRemotePreferenceCallback callback) throws RemoteException;
+}
@@ -0,0 +1,8 @@
+package org.lsposed.lspd.service;
+
+public interface IRemotePreferenceCallback {
+    void onUpdate(byte[] delta);
+
+    abstract class Stub implements IRemotePreferenceCallback {
+    }
+}
@@ -33,12 +33,12 @@ import com.android.internal.util.XmlUtils;
 
 import org.lsposed.lspd.core.BuildConfig;
 import org.lsposed.lspd.util.MetaDataReader;
+import org.lsposed.lspd.util.PrefsSnapshot;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.Path;
@@ -46,12 +46,16 @@ import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.security.MessageDigest;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import de.robv.android.xposed.services.FileResult;
 
@@ -67,11 +71,32 @@ public final class XSharedPreferences implements SharedPreferences {
     private static Thread sWatcherDaemon = null;
     private static WatchService sWatcher;
 
+    private static final int LOAD_THREADS = 2;
+    private static final ThreadPoolExecutor sLoadExecutor = new ThreadPoolExecutor(
+            LOAD_THREADS, LOAD_THREADS, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread thread = new Thread(r, "XSharedPreferences-load");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Loads that are queued but not yet started, keyed by file name
+    private static final HashMap<String, LoadTask> sPendingLoads = new HashMap<>();
+
+    static {
+        sLoadExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private final HashMap<OnSharedPreferenceChangeListener, Object> mListeners = new HashMap<>();
     private final File mFile;
     private final String mFilename;
-    private Map<String, Object> mMap;
-    private boolean mLoaded = false;
+    // Never modified once published, so getters read it without locking. A reload replaces it
+    // with a single write; null until first loaded.
+    private volatile Map<String, Object> mMap;
+    // The newest load requested, older ones finishing later must not overwrite its values
+    private long mLoadGeneration;
+    // The newest load requested by the constructor or reload(), getters wait until it is
+    // published. Loads of the watcher don't count, getters keep the current values meanwhile.
+    private volatile long mAwaitedGeneration;
+    private volatile long mPublishedGeneration;
     private long mLastModified;
     private long mFileSize;
     private WatchKey mWatchKey;
@@ -111,10 +136,16 @@ public final class XSharedPreferences implements SharedPreferences {
                             continue;
                         }
                         PrefsData data = sWatcherKeyInstances.get(key);
-                        if (data != null && data.hasChanged()) {
+                        if (data == null || !data.isPrefsFile(pathStr) || !data.hasChanged()) {
+                            continue;
+                        }
+                        Set<String> changedKeys = data.mPrefs.reloadChangedKeys();
+                        if (BuildConfig.DEBUG)
+                            Log.d(TAG, "Prefs file reloaded, changed keys: " + changedKeys);
+                        for (String changedKey : changedKeys) {
                             for (OnSharedPreferenceChangeListener l : data.mPrefs.mListeners.keySet()) {
                                 try {
-                                    l.onSharedPreferenceChanged(data.mPrefs, null);
+                                    l.onSharedPreferenceChanged(data.mPrefs, changedKey);
                                 } catch (Throwable t) {
                                     if (BuildConfig.DEBUG)
                                         Log.e(TAG, "Fail in preference change listener", t);
@@ -244,27 +275,11 @@ public final class XSharedPreferences implements SharedPreferences {
         startLoadFromDisk();
     }
 
-    private static long tryGetFileSize(String filename) {
+    private static FileResult tryStatFile(String filename) {
         try {
-            return SELinuxHelper.getAppDataFileService().getFileSize(filename);
+            return SELinuxHelper.getAppDataFileService().statFile(filename);
         } catch (IOException ignored) {
-            return 0;
-        }
-    }
-
-    private static byte[] tryGetFileHash(String filename) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            try (InputStream is = SELinuxHelper.getAppDataFileService().getFileInputStream(filename)) {
-                byte[] buf = new byte[4096];
-                int read;
-                while ((read = is.read(buf)) != -1) {
-                    md.update(buf, 0, read);
-                }
-            }
-            return md.digest();
-        } catch (Exception ignored) {
-            return new byte[0];
+            return null;
         }
     }
 
@@ -311,43 +326,79 @@ public final class XSharedPreferences implements SharedPreferences {
         return mFile;
     }
 
+    /**
+     * A queued load of one file. Every instance that asks for the same file before the task
+     * starts shares its single parse, and publishes it as the generation it last requested.
+     */
+    private static final class LoadTask implements Runnable {
+        private final String mFilename;
+        private final HashMap<XSharedPreferences, Long> mPrefs = new HashMap<>(2);
+
+        LoadTask(String filename) {
+            mFilename = filename;
+        }
+
+        @Override
+        public void run() {
+            synchronized (sPendingLoads) {
+                // requests from now on need a new parse, as the file may change while it is read
+                sPendingLoads.remove(mFilename);
+            }
+            // other instances may not have read the file yet, so never skip it as unchanged
+            LoadResult load = readFromDisk(mFilename, -1, 0);
+            for (Map.Entry<XSharedPreferences, Long> entry : mPrefs.entrySet()) {
+                XSharedPreferences prefs = entry.getKey();
+                synchronized (prefs) {
+                    prefs.publishLocked(load, entry.getValue());
+                }
+            }
+        }
+    }
+
+    private static final class LoadResult {
+        // null if the file couldn't be read, or if it is unchanged and wasn't read at all
+        Map<String, Object> map;
+        FileResult file;
+    }
+
     private void startLoadFromDisk() {
         synchronized (this) {
-            mLoaded = false;
-        }
-        new Thread("XSharedPreferences-load") {
-            @Override
-            public void run() {
-                synchronized (XSharedPreferences.this) {
-                    loadFromDiskLocked();
+            synchronized (sPendingLoads) {
+                LoadTask task = sPendingLoads.get(mFilename);
+                if (task == null) {
+                    task = new LoadTask(mFilename);
+                    sPendingLoads.put(mFilename, task);
+                    sLoadExecutor.execute(task);
                 }
+                // the task hasn't read the file yet, so its result is as new as this request
+                task.mPrefs.put(this, ++mLoadGeneration);
+                mAwaitedGeneration = mLoadGeneration;
             }
-        }.start();
+        }
     }
 
-    @SuppressWarnings({"rawtypes", "unchecked"})
-    private void loadFromDiskLocked() {
-        if (mLoaded) {
-            return;
+    @SuppressWarnings("unchecked")
+    private static LoadResult readFromDisk(String filename, long previousSize, long previousTime) {
+        LoadResult load = readSnapshot(filename, previousSize, previousTime);
+        if (load != null) {
+            return load;
         }
 
-        Map map = null;
+        load = new LoadResult();
         FileResult result = null;
         try {
-            result = SELinuxHelper.getAppDataFileService().getFileInputStream(mFilename, mFileSize, mLastModified);
+            result = SELinuxHelper.getAppDataFileService().getFileInputStream(filename, previousSize, previousTime);
+            load.file = result;
             if (result.stream != null) {
-                map = XmlUtils.readMapXml(result.stream);
+                load.map = XmlUtils.readMapXml(result.stream);
                 result.stream.close();
-            } else {
-                // The file is unchanged, keep the current values
-                map = mMap;
             }
         } catch (XmlPullParserException e) {
-            Log.w(TAG, "getSharedPreferences failed for: " + mFilename, e);
+            Log.w(TAG, "getSharedPreferences failed for: " + filename, e);
         } catch (FileNotFoundException ignored) {
             // SharedPreferencesImpl has a canRead() check, so it doesn't log anything in case the file doesn't exist
         } catch (IOException e) {
-            Log.w(TAG, "getSharedPreferences failed for: " + mFilename, e);
+            Log.w(TAG, "getSharedPreferences failed for: " + filename, e);
         } finally {
             if (result != null && result.stream != null) {
                 try {
@@ -358,20 +409,107 @@ public final class XSharedPreferences implements SharedPreferences {
                 }
             }
         }
+        return load;
+    }
+
+    /**
+     * Uses the binary snapshot the daemon keeps next to module preferences, if it is still in
+     * sync with the XML file. Returns {@code null} to fall back to parsing the XML.
+     */
+    private static LoadResult readSnapshot(String filename, long previousSize, long previousTime) {
+        FileResult stat = tryStatFile(filename);
+        if (stat == null || (stat.size == 0 && stat.mtime == 0)) {
+            return null;
+        }
+        LoadResult load = new LoadResult();
+        load.file = stat;
+        if (previousSize == stat.size && previousTime == stat.mtime) {
+            // The file is unchanged, publishLocked keeps the current values
+            return load;
+        }
+        try {
+            PrefsSnapshot snapshot = PrefsSnapshot.open(PrefsSnapshot.getSnapshotFile(new File(filename)));
+            if (!snapshot.matches(stat.size, stat.mtime, stat.inode)) {
+                return null;
+            }
+            load.map = snapshot.decode();
+            return load;
+        } catch (IOException ignored) {
+            // no snapshot for this file, or it is not readable
+            return null;
+        }
+    }
+
+    private void publishLocked(LoadResult load, long generation) {
+        if (generation != mLoadGeneration) {
+            // a newer load was requested in the meantime, e.g. by the watcher, and this
+            // one may have read the file before it changed
+            return;
+        }
+
+        Map<String, Object> map = load.map;
+        if (map == null && load.file != null && load.file.stream == null) {
+            // The file is unchanged, keep the current values
+            map = mMap;
+        }
 
-        mLoaded = true;
         if (map != null) {
-            mMap = map;
-            mLastModified = result.mtime;
-            mFileSize = result.size;
+            mLastModified = load.file.mtime;
+            mFileSize = load.file.size;
         } else {
-            mMap = new HashMap<>();
+            map = new HashMap<>();
         }
+        mMap = map;
+        mPublishedGeneration = generation;
         notifyAll();
     }
 
     /**
-     * Reload the settings from file if they have changed.
+     * Reads the file again in the calling thread and returns the keys whose values differ from
+     * the previously loaded ones, including added and removed keys. Getters keep returning the
+     * previous values while the file is read.
+     */
+    private Set<String> reloadChangedKeys() {
+        Map<String, Object> oldMap;
+        long generation;
+        synchronized (this) {
+            oldMap = mMap;
+            generation = ++mLoadGeneration;
+        }
+        // a size of -1 never matches, so the file is read even if size and mtime look the same
+        LoadResult load = readFromDisk(mFilename, -1, 0);
+        synchronized (this) {
+            publishLocked(load, generation);
+            // if a newer load superseded this one, wait for it and report its changes instead
+            while (mPublishedGeneration < generation) {
+                try {
+                    wait();
+                } catch (InterruptedException unused) {
+                }
+            }
+            return diffKeys(oldMap != null ? oldMap : Collections.emptyMap(), mMap);
+        }
+    }
+
+    private static Set<String> diffKeys(Map<String, ?> oldMap, Map<String, ?> newMap) {
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, ?> entry : newMap.entrySet()) {
+            String key = entry.getKey();
+            if (!oldMap.containsKey(key) || !Objects.equals(oldMap.get(key), entry.getValue())) {
+                changed.add(key);
+            }
+        }
+        for (String key : oldMap.keySet()) {
+            if (!newMap.containsKey(key)) {
+                changed.add(key);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Reload the settings from file if they have changed. The file is read in the background,
+     * the next getter call waits for it.
      *
      * <p><strong>Warning:</strong> With enforcing SELinux, this call might be quite expensive.
      */
@@ -399,12 +537,25 @@ public final class XSharedPreferences implements SharedPreferences {
         }
     }
 
-    private void awaitLoadedLocked() {
-        while (!mLoaded) {
-            try {
-                wait();
-            } catch (InterruptedException unused) {
+    /**
+     * Returns the loaded values. Unless a load requested by the constructor or {@link #reload}
+     * is pending, this is a few volatile reads; otherwise the caller waits for it, so a read
+     * after {@link #reload} still sees the new values.
+     */
+    private Map<String, Object> getLoadedMap() {
+        long awaited = mAwaitedGeneration;
+        // the generation is published after the map, so reading it first never sees older values
+        if (mPublishedGeneration >= awaited) {
+            return mMap;
+        }
+        synchronized (this) {
+            while (mPublishedGeneration < awaited) {
+                try {
+                    wait();
+                } catch (InterruptedException unused) {
+                }
             }
+            return mMap;
         }
     }
 
@@ -413,10 +564,8 @@ public final class XSharedPreferences implements SharedPreferences {
      */
     @Override
     public Map<String, ?> getAll() {
-        synchronized (this) {
-            awaitLoadedLocked();
-            return new HashMap<>(mMap);
-        }
+        Map<String, Object> map = getLoadedMap();
+        return new HashMap<>(map);
     }
 
     /**
@@ -424,11 +573,9 @@ public final class XSharedPreferences implements SharedPreferences {
      */
     @Override
     public String getString(String key, String defValue) {
-        synchronized (this) {
-            awaitLoadedLocked();
-            String v = (String) mMap.get(key);
-            return v != null ? v : defValue;
-        }
+        Map<String, Object> map = getLoadedMap();
+        String v = (String) map.get(key);
+        return v != null ? v : defValue;
     }
 
     /**
@@ -437,11 +584,9 @@ public final class XSharedPreferences implements SharedPreferences {
     @Override
     @SuppressWarnings("unchecked")
     public Set<String> getStringSet(String key, Set<String> defValues) {
-        synchronized (this) {
-            awaitLoadedLocked();
-            Set<String> v = (Set<String>) mMap.get(key);
-            return v != null ? v : defValues;
-        }
+        Map<String, Object> map = getLoadedMap();
+        Set<String> v = (Set<String>) map.get(key);
+        return v != null ? v : defValues;
     }
 
     /**
@@ -449,11 +594,9 @@ public final class XSharedPreferences implements SharedPreferences {
      */
     @Override
     public int getInt(String key, int defValue) {
-        synchronized (this) {
-            awaitLoadedLocked();
-            Integer v = (Integer) mMap.get(key);
-            return v != null ? v : defValue;
-        }
+        Map<String, Object> map = getLoadedMap();
+        Integer v = (Integer) map.get(key);
+        return v != null ? v : defValue;
     }
 
     /**
@@ -461,11 +604,9 @@ public final class XSharedPreferences implements SharedPreferences {
      */
     @Override
     public long getLong(String key, long defValue) {
-        synchronized (this) {
-            awaitLoadedLocked();
-            Long v = (Long) mMap.get(key);
-            return v != null ? v : defValue;
-        }
+        Map<String, Object> map = getLoadedMap();
+        Long v = (Long) map.get(key);
+        return v != null ? v : defValue;
     }
 
     /**
@@ -473,11 +614,9 @@ public final class XSharedPreferences implements SharedPreferences {
      */
     @Override
     public float getFloat(String key, float defValue) {
-        synchronized (this) {
-            awaitLoadedLocked();
-            Float v = (Float) mMap.get(key);
-            return v != null ? v : defValue;
-        }
+        Map<String, Object> map = getLoadedMap();
+        Float v = (Float) map.get(key);
+        return v != null ? v : defValue;
     }
 
     /**
@@ -485,11 +624,9 @@ public final class XSharedPreferences implements SharedPreferences {
      */
     @Override
     public boolean getBoolean(String key, boolean defValue) {
-        synchronized (this) {
-            awaitLoadedLocked();
-            Boolean v = (Boolean) mMap.get(key);
-            return v != null ? v : defValue;
-        }
+        Map<String, Object> map = getLoadedMap();
+        Boolean v = (Boolean) map.get(key);
+        return v != null ? v : defValue;
     }
 
     /**
@@ -497,10 +634,8 @@ public final class XSharedPreferences implements SharedPreferences {
      */
     @Override
     public boolean contains(String key) {
-        synchronized (this) {
-            awaitLoadedLocked();
-            return mMap.containsKey(key);
-        }
+        Map<String, Object> map = getLoadedMap();
+        return map.containsKey(key);
     }
 
     /**
@@ -514,8 +649,8 @@ public final class XSharedPreferences implements SharedPreferences {
 
     /**
      * Registers a callback to be invoked when a change happens to a preference file.<br>
-     * Note that it is not possible to determine which preference changed exactly and thus
-     * preference key in callback invocation will always be null.
+     * The file is reloaded before the callback is invoked, once for every key whose value was
+     * added, changed or removed.
      *
      * @param listener The callback that will run.
      * @see #unregisterOnSharedPreferenceChangeListener
@@ -549,31 +684,42 @@ public final class XSharedPreferences implements SharedPreferences {
 
     private static class PrefsData {
         public final XSharedPreferences mPrefs;
-        private long mSize;
-        private byte[] mHash;
+        private FileResult mStat;
+        private long mStatTime;
 
         public PrefsData(XSharedPreferences prefs) {
             mPrefs = prefs;
-            mSize = tryGetFileSize(prefs.mFilename);
-            mHash = tryGetFileHash(prefs.mFilename);
+            mStatTime = System.currentTimeMillis();
+            mStat = tryStatFile(prefs.mFilename);
+        }
+
+        public boolean isPrefsFile(String path) {
+            return path.equals(mPrefs.mFilename) || path.equals(mPrefs.mFilename + ".bak");
         }
 
+        /**
+         * Compares inode, size and mtime with the last check, which is enough to tell apart the
+         * atomic replacement done by SharedPreferencesImpl. Only if the file was last modified
+         * no earlier than the last check, a rewrite within the same mtime tick is possible, and
+         * the reload diff decides instead.
+         */
         public boolean hasChanged() {
-            long size = tryGetFileSize(mPrefs.mFilename);
-            if (size < 1) {
+            long now = System.currentTimeMillis();
+            FileResult stat = tryStatFile(mPrefs.mFilename);
+            if (stat == null || stat.size < 1) {
                 if (BuildConfig.DEBUG) Log.d(TAG, "Ignoring empty prefs file");
                 return false;
             }
-            if (size != mSize) {
-                mSize = size;
-                mHash = tryGetFileHash(mPrefs.mFilename);
-                if (BuildConfig.DEBUG) Log.d(TAG, "Prefs file size changed");
+            FileResult last = mStat;
+            long lastTime = mStatTime;
+            mStat = stat;
+            mStatTime = now;
+            if (last == null || stat.inode != last.inode || stat.size != last.size || stat.mtime != last.mtime) {
+                if (BuildConfig.DEBUG) Log.d(TAG, "Prefs file stat changed");
                 return true;
             }
-            byte[] hash = tryGetFileHash(mPrefs.mFilename);
-            if (!Arrays.equals(hash, mHash)) {
-                mHash = hash;
-                if (BuildConfig.DEBUG) Log.d(TAG, "Prefs file hash changed");
+            if (last.mtime >= lastTime) {
+                if (BuildConfig.DEBUG) Log.d(TAG, "Prefs file stat ambiguous");
                 return true;
             }
             if (BuildConfig.DEBUG) Log.d(TAG, "Prefs file not changed");
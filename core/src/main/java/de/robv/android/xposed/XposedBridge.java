@@ -38,6 +38,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Proxy;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
@@ -207,7 +208,7 @@ public final class XposedBridge {
             throw new IllegalArgumentException("callback should not be null!");
         }
 
-        if (!HookBridge.hookMethod(false, (Executable) hookMethod, LSPosedBridge.NativeHooker.class, callback.priority, callback)) {
+        if (!HookBridge.hookMethod(false, (Executable) hookMethod, LSPosedBridge.NativeHooker.class, callback.priority, callback, LSPosedBridge.getExecutableShorty((Executable) hookMethod))) {
             log("Failed to hook " + hookMethod);
             return null;
         }
@@ -336,34 +337,78 @@ public final class XposedBridge {
 
         @SuppressWarnings("UnusedReturnValue")
         public synchronized boolean add(E e) {
-            int index = indexOf(e);
+            var elements = this.elements;
+            int index = Arrays.binarySearch(elements, e);
             if (index >= 0)
                 return false;
 
+            // binary search returns (-(insertion point) - 1) for absent elements
+            index = -index - 1;
             Object[] newElements = new Object[elements.length + 1];
-            System.arraycopy(elements, 0, newElements, 0, elements.length);
-            newElements[elements.length] = e;
-            Arrays.sort(newElements);
-            elements = newElements;
+            System.arraycopy(elements, 0, newElements, 0, index);
+            newElements[index] = e;
+            System.arraycopy(elements, index, newElements, index + 1, elements.length - index);
+            this.elements = newElements;
+            return true;
+        }
+
+        /**
+         * Adds all elements with a single copy of the backing array, which is much cheaper than
+         * adding them one by one when registering many callbacks at once.
+         */
+        @SuppressWarnings({"UnusedReturnValue", "unchecked"})
+        public synchronized boolean addAll(Collection<? extends E> c) {
+            var elements = this.elements;
+            Object[] added = c.toArray();
+            Arrays.sort(added);
+
+            // drop duplicates the same way add() does, by comparison rather than identity
+            int count = 0;
+            for (var e : added) {
+                if ((count > 0 && ((Comparable<Object>) added[count - 1]).compareTo(e) == 0)
+                        || Arrays.binarySearch(elements, e) >= 0)
+                    continue;
+                added[count++] = e;
+            }
+            if (count == 0)
+                return false;
+
+            // merge the two sorted runs
+            Object[] newElements = new Object[elements.length + count];
+            int i = 0, j = 0, k = 0;
+            while (i < elements.length && j < count) {
+                if (((Comparable<Object>) added[j]).compareTo(elements[i]) < 0)
+                    newElements[k++] = added[j++];
+                else
+                    newElements[k++] = elements[i++];
+            }
+            System.arraycopy(elements, i, newElements, k, elements.length - i);
+            System.arraycopy(added, j, newElements, k + elements.length - i, count - j);
+            this.elements = newElements;
             return true;
         }
 
         @SuppressWarnings("UnusedReturnValue")
         public synchronized boolean remove(E e) {
-            int index = indexOf(e);
+            var elements = this.elements;
+            int index = indexOf(elements, e);
             if (index == -1)
                 return false;
 
             Object[] newElements = new Object[elements.length - 1];
             System.arraycopy(elements, 0, newElements, 0, index);
             System.arraycopy(elements, index + 1, newElements, index, elements.length - index - 1);
-            elements = newElements;
+            this.elements = newElements;
             return true;
         }
 
-        private int indexOf(Object o) {
+        private static int indexOf(Object[] elements, Object o) {
+            int index = Arrays.binarySearch(elements, o);
+            if (index >= 0 && elements[index] == o)
+                return index;
+            // callbacks with the same priority are ordered by identity hash, which may collide
             for (int i = 0; i < elements.length; i++) {
-                if (o.equals(elements[i]))
+                if (elements[i] == o)
                     return i;
             }
             return -1;
@@ -389,6 +434,7 @@ public final class XposedBridge {
         private final Object[] snapshot;
 
         private int beforeIdx;
+        private int exceptionCount;
 
         public LegacyApiSupport(LSPosedHookCallback<T> callback, Object[] legacySnapshot) {
             this.param = new XC_MethodHook.MethodHookParam<>();
@@ -396,6 +442,16 @@ public final class XposedBridge {
             this.snapshot = legacySnapshot;
         }
 
+        /**
+         * Runs the legacy callbacks directly on the given param. Used when no modern hooker is
+         * registered, so there is no modern state to keep in sync with.
+         */
+        public LegacyApiSupport(XC_MethodHook.MethodHookParam<T> param, Object[] legacySnapshot) {
+            this.param = param;
+            this.callback = null;
+            this.snapshot = legacySnapshot;
+        }
+
         public void handleBefore() {
             syncronizeApi(param, callback, true);
             for (beforeIdx = 0; beforeIdx < snapshot.length; beforeIdx++) {
@@ -404,6 +460,7 @@ public final class XposedBridge {
                     cb.beforeHookedMethod(param);
                 } catch (Throwable t) {
                     XposedBridge.log(t);
+                    exceptionCount++;
 
                     // reset result (ignoring what the unexpectedly exiting callback did)
                     param.setResult(null);
@@ -430,6 +487,7 @@ public final class XposedBridge {
                     cb.afterHookedMethod(param);
                 } catch (Throwable t) {
                     XposedBridge.log(t);
+                    exceptionCount++;
 
                     // reset to last result (ignoring what the unexpectedly exiting callback did)
                     if (lastThrowable == null) {
@@ -442,7 +500,12 @@ public final class XposedBridge {
             syncronizeApi(param, callback, false);
         }
 
+        public int getExceptionCount() {
+            return exceptionCount;
+        }
+
         private void syncronizeApi(XC_MethodHook.MethodHookParam<T> param, LSPosedHookCallback<T> callback, boolean forward) {
+            if (callback == null) return;
             if (forward) {
                 param.method = callback.method;
                 param.thisObject = callback.thisObject;
@@ -23,16 +23,15 @@ package de.robv.android.xposed;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 
-import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
-
 import org.apache.commons.lang3.ClassUtils;
 import org.apache.commons.lang3.reflect.MemberUtilsX;
+import org.lsposed.lspd.util.ConcurrentWeakIdentityMap;
 
 import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.SoftReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
@@ -42,16 +41,16 @@ import java.lang.reflect.Modifier;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Objects;
 import java.util.Optional;
-import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import sun.misc.Unsafe;
+
 /**
  * Helpers that simplify hooking and calling methods/constructors, getting and settings fields, ...
  */
@@ -59,128 +58,188 @@ public final class XposedHelpers {
     private XposedHelpers() {
     }
 
-    private static final ConcurrentHashMap<MemberCacheKey.Field, Optional<Field>> fieldCache = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<MemberCacheKey.Method, Optional<Method>> methodCache = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<MemberCacheKey.Constructor, Optional<Constructor<?>>> constructorCache = new ConcurrentHashMap<>();
-    private static final WeakHashMap<Object, HashMap<String, Object>> additionalFields = new WeakHashMap<>();
-    private static final HashMap<String, ThreadLocal<AtomicInteger>> sMethodDepth = new HashMap<>();
+    private static final Unsafe UNSAFE = getUnsafe();
+    private static final ConcurrentWeakIdentityMap<Class<?>, SoftReference<MemberCache>> memberCaches = new ConcurrentWeakIdentityMap<>();
+    private static final ConcurrentWeakIdentityMap<ClassLoader, SoftReference<ConcurrentHashMap<String, Object>>> classCaches = new ConcurrentWeakIdentityMap<>();
+    private static final ConcurrentWeakIdentityMap<Object, ConcurrentHashMap<String, Object>> additionalFields = new ConcurrentWeakIdentityMap<>();
+    private static final ConcurrentHashMap<String, Integer> sMethodDepthIndex = new ConcurrentHashMap<>();
+    private static final AtomicInteger sMethodDepthCount = new AtomicInteger();
+    private static final ThreadLocal<int[]> sMethodDepth = ThreadLocal.withInitial(() -> new int[8]);
 
     /**
-     * Note that we use object key instead of string here, because string calculation will lose all
-     * the benefits of 'HashMap', this is basically the solution of performance traps.
+     * Reflection lookups of a single class, so that a lookup only compares names and parameter
+     * arrays and allocates nothing on a hit.
      * <p>
-     * So in fact we only need to use the structural comparison results of the reflection object.
-     *
-     * @see <a href="https://github.com/RinOrz/LSPosed/blob/a44e1f1cdf0c5e5ebfaface828e5907f5425df1b/benchmark/src/result/ReflectionCacheBenchmark.json">benchmarks for ART</a>
-     * @see <a href="https://github.com/meowool-catnip/cloak/blob/main/api/src/benchmark/kotlin/com/meowool/cloak/ReflectionObjectAccessTests.kt#L37-L65">benchmarks for JVM</a>
+     * The cache is reached weakly through its class and held softly, since the cached members
+     * reference their class themselves and would otherwise keep it and its loader alive forever.
      */
-    private abstract static class MemberCacheKey {
-        private final int hash;
-
-        protected MemberCacheKey(int hash) {
-            this.hash = hash;
-        }
+    private static final class MemberCache {
+        private static final Method[] NO_METHODS = new Method[0];
 
-        @Override
-        public abstract boolean equals(@Nullable Object obj);
+        final ConcurrentHashMap<String, Optional<FieldAccessor>> fields = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, SignatureCache<Method>> methods = new ConcurrentHashMap<>();
+        final SignatureCache<Constructor<?>> constructors = new SignatureCache<>();
+        final SignatureCache<Method[]> methodsByParameters = new SignatureCache<>();
+        private volatile HashMap<String, Method[]> declaredMethods;
 
-        @Override
-        public final int hashCode() {
-            return hash;
+        /**
+         * Returns the methods declared by the class with the given name. The index is built once
+         * from {@link Class#getDeclaredMethods()} and must not be modified.
+         */
+        Method[] getDeclaredMethods(Class<?> clazz, String name) {
+            var index = declaredMethods;
+            if (index == null) {
+                index = new HashMap<>();
+                for (var method : clazz.getDeclaredMethods()) {
+                    var overloads = index.get(method.getName());
+                    if (overloads == null) {
+                        overloads = new Method[]{method};
+                    } else {
+                        overloads = Arrays.copyOf(overloads, overloads.length + 1);
+                        overloads[overloads.length - 1] = method;
+                    }
+                    index.put(method.getName(), overloads);
+                }
+                // racing builders produce equal indexes, publishing either of them is fine
+                declaredMethods = index;
+            }
+            var overloads = index.get(name);
+            return overloads != null ? overloads : NO_METHODS;
         }
+    }
 
-        static final class Constructor extends MemberCacheKey {
-            private final Class<?> clazz;
-            private final Class<?>[] parameters;
-            private final boolean isExact;
+    /**
+     * Lookup results of one member name by parameter types. Overloads are few, so a copy-on-write
+     * array scanned linearly is cheaper than hashing the parameter array.
+     */
+    private static final class SignatureCache<T> {
+        private static final class Entry<T> {
+            final Class<?> returnType;
+            final Class<?>[] parameters;
+            final boolean isExact;
+            final Optional<T> result;
 
-            public Constructor(Class<?> clazz, Class<?>[] parameters, boolean isExact) {
-                super(31 * Objects.hash(clazz, isExact) + Arrays.hashCode(parameters));
-                this.clazz = clazz;
+            Entry(Class<?> returnType, Class<?>[] parameters, boolean isExact, Optional<T> result) {
+                this.returnType = returnType;
                 this.parameters = parameters;
                 this.isExact = isExact;
-            }
-
-            @Override
-            public boolean equals(Object o) {
-                if (this == o) return true;
-                if (!(o instanceof Constructor)) return false;
-                Constructor that = (Constructor) o;
-                return isExact == that.isExact && Objects.equals(clazz, that.clazz) && Arrays.equals(parameters, that.parameters);
-            }
-
-            @NonNull
-            @Override
-            public String toString() {
-                var str = clazz.getName() + getParametersString(parameters);
-                if (isExact) {
-                    return str + "#exact";
-                } else {
-                    return str;
-                }
+                this.result = result;
             }
         }
 
-        static final class Field extends MemberCacheKey {
-            private final Class<?> clazz;
-            private final String name;
+        private static final Class<?>[] NO_PARAMETERS = new Class<?>[0];
 
-            public Field(Class<?> clazz, String name) {
-                super(Objects.hash(clazz, name));
-                this.clazz = clazz;
-                this.name = name;
-            }
+        private volatile Entry<?>[] entries = new Entry<?>[0];
 
-            @Override
-            public boolean equals(Object o) {
-                if (this == o) return true;
-                if (!(o instanceof Field)) return false;
-                Field field = (Field) o;
-                return Objects.equals(clazz, field.clazz) && Objects.equals(name, field.name);
-            }
+        Optional<T> get(Class<?>[] parameters, boolean isExact) {
+            return get(null, parameters, isExact);
+        }
 
-            @NonNull
-            @Override
-            public String toString() {
-                return clazz.getName() + "#" + name;
+        @SuppressWarnings("unchecked")
+        Optional<T> get(Class<?> returnType, Class<?>[] parameters, boolean isExact) {
+            // reflection takes null for no parameters
+            if (parameters == null)
+                parameters = NO_PARAMETERS;
+            for (var entry : entries) {
+                if (entry.isExact == isExact && entry.returnType == returnType && Arrays.equals(entry.parameters, parameters))
+                    return ((Entry<T>) entry).result;
             }
+            return null;
+        }
+
+        Optional<T> putIfAbsent(Class<?>[] parameters, boolean isExact, Optional<T> result) {
+            return putIfAbsent(null, parameters, isExact, result);
         }
 
-        static final class Method extends MemberCacheKey {
-            private final Class<?> clazz;
-            private final String name;
-            private final Class<?>[] parameters;
-            private final boolean isExact;
+        synchronized Optional<T> putIfAbsent(Class<?> returnType, Class<?>[] parameters, boolean isExact, Optional<T> result) {
+            if (parameters == null)
+                parameters = NO_PARAMETERS;
+            var existing = get(returnType, parameters, isExact);
+            if (existing != null)
+                return existing;
+            var newEntries = Arrays.copyOf(entries, entries.length + 1);
+            // callers may reuse the array, e.g. findMethodBestMatch(Class, String, Class[], Object[])
+            newEntries[entries.length] = new Entry<>(returnType, parameters.clone(), isExact, result);
+            entries = newEntries;
+            return result;
+        }
+    }
 
-            public Method(Class<?> clazz, String name, Class<?>[] parameters, boolean isExact) {
-                super(31 * Objects.hash(clazz, name, isExact) + Arrays.hashCode(parameters));
-                this.clazz = clazz;
-                this.name = name;
-                this.parameters = parameters;
-                this.isExact = isExact;
-            }
+    /**
+     * A field found by {@link #findField}. Plain instance fields are additionally accessed through
+     * {@link Unsafe} by the get/set*Field helpers, which skips the access and receiver checks of
+     * reflection; the receiver is known to be an instance since the field was looked up from its
+     * class. Static and volatile fields, and reads or writes that need a conversion, still go
+     * through reflection.
+     */
+    private static final class FieldAccessor {
+        final Field field;
+        final Class<?> type;
+        // -1 if the field must be accessed through reflection
+        final long offset;
 
-            @Override
-            public boolean equals(Object o) {
-                if (this == o) return true;
-                if (!(o instanceof Method)) return false;
-                Method method = (Method) o;
-                return isExact == method.isExact && Objects.equals(clazz, method.clazz) && Objects.equals(name, method.name) && Arrays.equals(parameters, method.parameters);
+        FieldAccessor(Field field) {
+            this.field = field;
+            this.type = field.getType();
+            int modifiers = field.getModifiers();
+            if (UNSAFE != null && !Modifier.isStatic(modifiers) && !Modifier.isVolatile(modifiers)) {
+                offset = UNSAFE.objectFieldOffset(field);
+            } else {
+                offset = -1;
             }
+        }
+    }
 
-            @NonNull
-            @Override
-            public String toString() {
-                var str = clazz.getName() + '#' + name + getParametersString(parameters);
-                if (isExact) {
-                    return str + "#exact";
-                } else {
-                    return str;
-                }
+    private static Unsafe getUnsafe() {
+        try {
+            var theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            // not every runtime we support has accessors for all primitive types
+            for (var type : new Class<?>[]{boolean.class, byte.class, char.class, double.class, float.class, int.class, long.class, short.class}) {
+                var name = type.getName();
+                name = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+                Unsafe.class.getMethod("get" + name, Object.class, long.class);
+                Unsafe.class.getMethod("put" + name, Object.class, long.class, type);
             }
+            return (Unsafe) theUnsafe.get(null);
+        } catch (Throwable t) {
+            XposedBridge.log("Unsafe field access unavailable: " + t);
+            return null;
         }
     }
 
+    private static MemberCache getMemberCache(Class<?> clazz) {
+        var ref = memberCaches.get(clazz);
+        MemberCache cache;
+        if (ref != null && (cache = ref.get()) != null)
+            return cache;
+        cache = new MemberCache();
+        memberCaches.put(clazz, new SoftReference<>(cache));
+        return cache;
+    }
+
+    /**
+     * Classes resolved through a class loader by name, and the {@link ClassNotFoundException} of
+     * names that could not be resolved. Held softly for the same reason as {@link MemberCache}.
+     */
+    private static ConcurrentHashMap<String, Object> getClassCache(ClassLoader classLoader) {
+        var ref = classCaches.get(classLoader);
+        ConcurrentHashMap<String, Object> cache;
+        if (ref != null && (cache = ref.get()) != null)
+            return cache;
+        cache = new ConcurrentHashMap<>();
+        classCaches.put(classLoader, new SoftReference<>(cache));
+        return cache;
+    }
+
+    private static SignatureCache<Method> getMethodCache(Class<?> clazz, String methodName) {
+        var methods = getMemberCache(clazz).methods;
+        var cache = methods.get(methodName);
+        if (cache == null)
+            cache = methods.computeIfAbsent(methodName, k -> new SignatureCache<>());
+        return cache;
+    }
+
     /**
      * Look up a class with the specified class loader.
      *
@@ -199,13 +258,11 @@ public final class XposedHelpers {
      * @throws ClassNotFoundError In case the class was not found.
      */
     public static Class<?> findClass(String className, ClassLoader classLoader) {
-        if (classLoader == null)
-            classLoader = XposedBridge.BOOTCLASSLOADER;
-        try {
-            return ClassUtils.getClass(classLoader, className, false);
-        } catch (ClassNotFoundException e) {
-            throw new ClassNotFoundError(e);
-        }
+        var clazz = findClassImpl(className, classLoader);
+        if (clazz instanceof Class)
+            return (Class<?>) clazz;
+        // the exception of the first lookup, which tells where the class loader looked
+        throw new ClassNotFoundError((ClassNotFoundException) clazz);
     }
 
     /**
@@ -217,11 +274,29 @@ public final class XposedHelpers {
      * @return A reference to the class, or {@code null} if it doesn't exist.
      */
     public static Class<?> findClassIfExists(String className, ClassLoader classLoader) {
-        try {
-            return findClass(className, classLoader);
-        } catch (ClassNotFoundError e) {
-            return null;
+        var clazz = findClassImpl(className, classLoader);
+        return clazz instanceof Class ? (Class<?>) clazz : null;
+    }
+
+    /**
+     * @return the class, or the {@link ClassNotFoundException} thrown when looking it up.
+     */
+    private static Object findClassImpl(String className, ClassLoader classLoader) {
+        if (classLoader == null)
+            classLoader = XposedBridge.BOOTCLASSLOADER;
+        var classes = getClassCache(classLoader);
+        var clazz = classes.get(className);
+        if (clazz == null) {
+            try {
+                clazz = ClassUtils.getClass(classLoader, className, false);
+            } catch (ClassNotFoundException e) {
+                clazz = e;
+            }
+            var existing = classes.putIfAbsent(className, clazz);
+            if (existing != null)
+                clazz = existing;
         }
+        return clazz;
     }
 
     /**
@@ -233,17 +308,27 @@ public final class XposedHelpers {
      * @throws NoSuchFieldError In case the field was not found.
      */
     public static Field findField(Class<?> clazz, String fieldName) {
-        var key = new MemberCacheKey.Field(clazz, fieldName);
+        return findFieldAccessor(clazz, fieldName).field;
+    }
 
-        return fieldCache.computeIfAbsent(key, k -> {
+    private static FieldAccessor findFieldAccessor(Class<?> clazz, String fieldName) {
+        var fields = getMemberCache(clazz).fields;
+        var field = fields.get(fieldName);
+        if (field == null) {
             try {
-                Field newField = findFieldRecursiveImpl(k.clazz, k.name);
+                Field newField = findFieldRecursiveImpl(clazz, fieldName);
                 newField.setAccessible(true);
-                return Optional.of(newField);
+                field = Optional.of(new FieldAccessor(newField));
             } catch (NoSuchFieldException e) {
-                return Optional.empty();
+                field = Optional.empty();
             }
-        }).orElseThrow(() -> new NoSuchFieldError(key.toString()));
+            var existing = fields.putIfAbsent(fieldName, field);
+            if (existing != null)
+                field = existing;
+        }
+        if (field.isPresent())
+            return field.get();
+        throw new NoSuchFieldError(clazz.getName() + "#" + fieldName);
     }
 
     /**
@@ -455,17 +540,26 @@ public final class XposedHelpers {
      * <p>This variant requires that you already have reference to all the parameter types.
      */
     public static Method findMethodExact(Class<?> clazz, String methodName, Class<?>... parameterTypes) {
-        var key = new MemberCacheKey.Method(clazz, methodName, parameterTypes, true);
+        var method = findMethodExactImpl(clazz, methodName, parameterTypes);
+        if (method.isPresent())
+            return method.get();
+        throw new NoSuchMethodError(clazz.getName() + '#' + methodName + getParametersString(parameterTypes) + "#exact");
+    }
 
-        return methodCache.computeIfAbsent(key, k -> {
+    private static Optional<Method> findMethodExactImpl(Class<?> clazz, String methodName, Class<?>[] parameterTypes) {
+        var methods = getMethodCache(clazz, methodName);
+        var method = methods.get(parameterTypes, true);
+        if (method == null) {
             try {
-                Method method = k.clazz.getDeclaredMethod(k.name, k.parameters);
-                method.setAccessible(true);
-                return Optional.of(method);
+                Method newMethod = clazz.getDeclaredMethod(methodName, parameterTypes);
+                newMethod.setAccessible(true);
+                method = Optional.of(newMethod);
             } catch (NoSuchMethodException e) {
-                return Optional.empty();
+                method = Optional.empty();
             }
-        }).orElseThrow(() -> new NoSuchMethodError(key.toString()));
+            method = methods.putIfAbsent(parameterTypes, true, method);
+        }
+        return method;
     }
 
     /**
@@ -480,7 +574,18 @@ public final class XposedHelpers {
      * @return An array with matching methods, all set to accessible already.
      */
     public static Method[] findMethodsByExactParameters(Class<?> clazz, Class<?> returnType, Class<?>... parameterTypes) {
-        List<Method> result = new LinkedList<>();
+        var cache = getMemberCache(clazz).methodsByParameters;
+        var methods = cache.get(returnType, parameterTypes, true);
+        if (methods == null) {
+            methods = cache.putIfAbsent(returnType, parameterTypes, true,
+                    Optional.of(findMethodsByExactParametersImpl(clazz, returnType, parameterTypes)));
+        }
+        // the cached array is shared, hand out a copy
+        return methods.get().clone();
+    }
+
+    private static Method[] findMethodsByExactParametersImpl(Class<?> clazz, Class<?> returnType, Class<?>[] parameterTypes) {
+        List<Method> result = new ArrayList<>();
         for (Method method : clazz.getDeclaredMethods()) {
             if (returnType != null && returnType != method.getReturnType())
                 continue;
@@ -521,48 +626,52 @@ public final class XposedHelpers {
      */
     public static Method findMethodBestMatch(Class<?> clazz, String methodName, Class<?>... parameterTypes) {
         // find the exact matching method first
-        try {
-            return findMethodExact(clazz, methodName, parameterTypes);
-        } catch (NoSuchMethodError ignored) {
-        }
+        var exact = findMethodExactImpl(clazz, methodName, parameterTypes);
+        if (exact.isPresent())
+            return exact.get();
 
         // then find the best match
-        var key = new MemberCacheKey.Method(clazz, methodName, parameterTypes, false);
-
-        return methodCache.computeIfAbsent(key, k -> {
-            Method bestMatch = null;
-            Class<?> clz = k.clazz;
-            boolean considerPrivateMethods = true;
-            do {
-                for (Method method : clz.getDeclaredMethods()) {
-                    // don't consider private methods of superclasses
-                    if (!considerPrivateMethods && Modifier.isPrivate(method.getModifiers()))
-                        continue;
-
-                    // compare name and parameters
-                    if (method.getName().equals(k.name) && ClassUtils.isAssignable(
-                            k.parameters,
-                            method.getParameterTypes(),
-                            true)) {
-                        // get accessible version of method
-                        if (bestMatch == null || MemberUtilsX.compareMethodFit(
-                                method,
-                                bestMatch,
-                                k.parameters) < 0) {
-                            bestMatch = method;
-                        }
+        var methods = getMethodCache(clazz, methodName);
+        var method = methods.get(parameterTypes, false);
+        if (method == null) {
+            method = methods.putIfAbsent(parameterTypes, false,
+                    Optional.ofNullable(findMethodBestMatchImpl(clazz, methodName, parameterTypes)));
+        }
+        if (method.isPresent())
+            return method.get();
+        throw new NoSuchMethodError(clazz.getName() + '#' + methodName + getParametersString(parameterTypes));
+    }
+
+    private static Method findMethodBestMatchImpl(Class<?> clazz, String methodName, Class<?>[] parameterTypes) {
+        Method bestMatch = null;
+        Class<?> clz = clazz;
+        boolean considerPrivateMethods = true;
+        do {
+            for (Method method : getMemberCache(clz).getDeclaredMethods(clz, methodName)) {
+                // don't consider private methods of superclasses
+                if (!considerPrivateMethods && Modifier.isPrivate(method.getModifiers()))
+                    continue;
+
+                // compare parameters, the index only contains methods of that name
+                if (ClassUtils.isAssignable(
+                        parameterTypes,
+                        method.getParameterTypes(),
+                        true)) {
+                    // get accessible version of method
+                    if (bestMatch == null || MemberUtilsX.compareMethodFit(
+                            method,
+                            bestMatch,
+                            parameterTypes) < 0) {
+                        bestMatch = method;
                     }
                 }
-                considerPrivateMethods = false;
-            } while ((clz = clz.getSuperclass()) != null);
-
-            if (bestMatch != null) {
-                bestMatch.setAccessible(true);
-                return Optional.of(bestMatch);
-            } else {
-                return Optional.empty();
             }
-        }).orElseThrow(() -> new NoSuchMethodError(key.toString()));
+            considerPrivateMethods = false;
+        } while ((clz = clz.getSuperclass()) != null);
+
+        if (bestMatch != null)
+            bestMatch.setAccessible(true);
+        return bestMatch;
     }
 
     /**
@@ -708,17 +817,26 @@ public final class XposedHelpers {
      * See {@link #findMethodExact(String, ClassLoader, String, Object...)} for details.
      */
     public static Constructor<?> findConstructorExact(Class<?> clazz, Class<?>... parameterTypes) {
-        var key = new MemberCacheKey.Constructor(clazz, parameterTypes, true);
+        var constructor = findConstructorExactImpl(clazz, parameterTypes);
+        if (constructor.isPresent())
+            return constructor.get();
+        throw new NoSuchMethodError(clazz.getName() + getParametersString(parameterTypes) + "#exact");
+    }
 
-        return constructorCache.computeIfAbsent(key, k -> {
+    private static Optional<Constructor<?>> findConstructorExactImpl(Class<?> clazz, Class<?>[] parameterTypes) {
+        var constructors = getMemberCache(clazz).constructors;
+        var constructor = constructors.get(parameterTypes, true);
+        if (constructor == null) {
             try {
-                Constructor<?> constructor = k.clazz.getDeclaredConstructor(k.parameters);
-                constructor.setAccessible(true);
-                return Optional.of(constructor);
+                Constructor<?> newConstructor = clazz.getDeclaredConstructor(parameterTypes);
+                newConstructor.setAccessible(true);
+                constructor = Optional.of(newConstructor);
             } catch (NoSuchMethodException e) {
-                return Optional.empty();
+                constructor = Optional.empty();
             }
-        }).orElseThrow(() -> new NoSuchMethodError(key.toString()));
+            constructor = constructors.putIfAbsent(parameterTypes, true, constructor);
+        }
+        return constructor;
     }
 
     /**
@@ -750,40 +868,44 @@ public final class XposedHelpers {
      */
     public static Constructor<?> findConstructorBestMatch(Class<?> clazz, Class<?>... parameterTypes) {
         // find the exact matching constructor first
-        try {
-            return findConstructorExact(clazz, parameterTypes);
-        } catch (NoSuchMethodError ignored) {
-        }
+        var exact = findConstructorExactImpl(clazz, parameterTypes);
+        if (exact.isPresent())
+            return exact.get();
 
         // then find the best match
-        var key = new MemberCacheKey.Constructor(clazz, parameterTypes, false);
-
-        return constructorCache.computeIfAbsent(key, k -> {
-            Constructor<?> bestMatch = null;
-            Constructor<?>[] constructors = k.clazz.getDeclaredConstructors();
-            for (Constructor<?> constructor : constructors) {
-                // compare name and parameters
-                if (ClassUtils.isAssignable(
-                        k.parameters,
-                        constructor.getParameterTypes(),
-                        true)) {
-                    // get accessible version of method
-                    if (bestMatch == null || MemberUtilsX.compareConstructorFit(
-                            constructor,
-                            bestMatch,
-                            k.parameters) < 0) {
-                        bestMatch = constructor;
-                    }
+        var constructors = getMemberCache(clazz).constructors;
+        var constructor = constructors.get(parameterTypes, false);
+        if (constructor == null) {
+            constructor = constructors.putIfAbsent(parameterTypes, false,
+                    Optional.ofNullable(findConstructorBestMatchImpl(clazz, parameterTypes)));
+        }
+        if (constructor.isPresent())
+            return constructor.get();
+        throw new NoSuchMethodError(clazz.getName() + getParametersString(parameterTypes));
+    }
+
+    private static Constructor<?> findConstructorBestMatchImpl(Class<?> clazz, Class<?>[] parameterTypes) {
+        Constructor<?> bestMatch = null;
+        Constructor<?>[] constructors = clazz.getDeclaredConstructors();
+        for (Constructor<?> constructor : constructors) {
+            // compare name and parameters
+            if (ClassUtils.isAssignable(
+                    parameterTypes,
+                    constructor.getParameterTypes(),
+                    true)) {
+                // get accessible version of method
+                if (bestMatch == null || MemberUtilsX.compareConstructorFit(
+                        constructor,
+                        bestMatch,
+                        parameterTypes) < 0) {
+                    bestMatch = constructor;
                 }
             }
+        }
 
-            if (bestMatch != null) {
-                bestMatch.setAccessible(true);
-                return Optional.of(bestMatch);
-            } else {
-                return Optional.empty();
-            }
-        }).orElseThrow(() -> new NoSuchMethodError(key.toString()));
+        if (bestMatch != null)
+            bestMatch.setAccessible(true);
+        return bestMatch;
     }
 
     /**
@@ -887,8 +1009,14 @@ public final class XposedHelpers {
      * Sets the value of an object field in the given object instance. A class reference is not sufficient! See also {@link #findField}.
      */
     public static void setObjectField(Object obj, String fieldName, Object value) {
+        var accessor = findFieldAccessor(obj.getClass(), fieldName);
+        // Unsafe does not check the stored type, leave conversions and errors to reflection
+        if (accessor.offset >= 0 && !accessor.type.isPrimitive() && (value == null || accessor.type.isInstance(value))) {
+            UNSAFE.putObject(obj, accessor.offset, value);
+            return;
+        }
         try {
-            findField(obj.getClass(), fieldName).set(obj, value);
+            accessor.field.set(obj, value);
         } catch (IllegalAccessException e) {
             // should not happen
             XposedBridge.log(e);
@@ -902,8 +1030,13 @@ public final class XposedHelpers {
      * Sets the value of a {@code boolean} field in the given object instance. A class reference is not sufficient! See also {@link #findField}.
      */
     public static void setBooleanField(Object obj, String fieldName, boolean value) {
+        var accessor = findFieldAccessor(obj.getClass(), fieldName);
+        if (accessor.offset >= 0 && accessor.type == boolean.class) {
+            UNSAFE.putBoolean(obj, accessor.offset, value);
+            return;
+        }
         try {
-            findField(obj.getClass(), fieldName).setBoolean(obj, value);
+            accessor.field.setBoolean(obj, value);
         } catch (IllegalAccessException e) {
             // should not happen
             XposedBridge.log(e);
@@ -917,8 +1050,13 @@ public final class XposedHelpers {
      * Sets the value of a {@code byte} field in the given object instance. A class reference is not sufficient! See also {@link #findField}.
      */
     public static void setByteField(Object obj, String fieldName, byte value) {
+        var accessor = findFieldAccessor(obj.getClass(), fieldName);
+        if (accessor.offset >= 0 && accessor.type == byte.class) {
+            UNSAFE.putByte(obj, accessor.offset, value);
+            return;
+        }
         try {
-            findField(obj.getClass(), fieldName).setByte(obj, value);
+            accessor.field.setByte(obj, value);
         } catch (IllegalAccessException e) {
             // should not happen
             XposedBridge.log(e);
@@ -932,8 +1070,13 @@ public final class XposedHelpers {
      * Sets the value of a {@code char} field in the given object instance. A class reference is not sufficient! See also {@link #findField}.
      */
     public static void setCharField(Object obj, String fieldName, char value) {
+        var accessor = findFieldAccessor(obj.getClass(), fieldName);
+        if (accessor.offset >= 0 && accessor.type == char.class) {
+            UNSAFE.putChar(obj, accessor.offset, value);
+            return;
+        }
         try {
-            findField(obj.getClass(), fieldName).setChar(obj, value);
+            accessor.field.setChar(obj, value);
         } catch (IllegalAccessException e) {
             // should not happen
             XposedBridge.log(e);
@@ -947,8 +1090,13 @@ public final class XposedHelpers {
      * Sets the value of a {@code double} field in the given object instance. A class reference is not sufficient! See also {@link #findField}.
      */
     public static void setDoubleField(Object obj, String fieldName, double value) {
+        var accessor = findFieldAccessor(obj.getClass(), fieldName);
+        if (accessor.offset >= 0 && accessor.type == double.class) {
+            UNSAFE.putDouble(obj, accessor.offset, value);
+            return;
+        }
         try {
-            findField(obj.getClass(), fieldName).setDouble(obj, value);
+            accessor.field.setDouble(obj, value);
         } catch (IllegalAccessException e) {
             // should not happen
             XposedBridge.log(e);
@@ -962,8 +1110,13 @@ public final class XposedHelpers {
      * Sets the value of a {@code float} field in the given object instance. A class reference is not sufficient! See also {@link #findField}.
      */
     public static void setFloatField(Object obj, String fieldName, float value) {
+        var accessor = findFieldAccessor(obj.getClass(), fieldName);
+        if (accessor.offset >= 0 && accessor.type == float.class) {
+            UNSAFE.putFloat(obj, accessor.offset, value);
+            return;
+        }
         try {
-            findField(obj.getClass(), fieldName).setFloat(obj, value);
+            accessor.field.setFloat(obj, value);
         } catch (IllegalAccessException e) {
             // should not happen
             XposedBridge.log(e);
@@ -977,8 +1130,13 @@ public final class XposedHelpers {
      * Sets the value of an {@code int} field in the given object instance. A class reference is not sufficient! See also {@link #findField}.
      */
     public static void setIntField(Object obj, String fieldName, int value) {
+        var accessor = findFieldAccessor(obj.getClass(), fieldName);
+        if (accessor.offset >= 0 && accessor.type == int.class) {
+            UNSAFE.putInt(obj, accessor.offset, value);
+            return;
+        }
         try {
-            findField(obj.getClass(), fieldName).setInt(obj, value);
+            accessor.field.setInt(obj, value);
         } catch (IllegalAccessException e) {
             // should not happen
             XposedBridge.log(e);
@@ -992,8 +1150,13 @@ public final class XposedHelpers {
      * Sets the value of a {@code long} field in the given object instance. A class reference is not sufficient! See also {@link #findField}.
      */
     public static void setLongField(Object obj, String fieldName, long value) {
+        var accessor = findFieldAccessor(obj.getClass(), fieldName);
+        if (accessor.offset >= 0 && accessor.type == long.class) {
+            UNSAFE.putLong(obj, accessor.offset, value);
+            return;
+        }
         try {
-            findField(obj.getClass(), fieldName).setLong(obj, value);
+            accessor.field.setLong(obj, value);
         } catch (IllegalAccessException e) {
             // should not happen
             XposedBridge.log(e);
@@ -1007,8 +1170,13 @@ public final class XposedHelpers {
      * Sets the value of a {@code short} field in the given object instance. A class reference is not sufficient! See also {@link #findField}.
      */
     public static void setShortField(Object obj, String fieldName, short value) {
+        var accessor = findFieldAccessor(obj.getClass(), fieldName);
+        if (accessor.offset >= 0 && accessor.type == short.class) {
+            UNSAFE.putShort(obj, accessor.offset, value);
+            return;
+        }
         try {
-            findField(obj.getClass(), fieldName).setShort(obj, value);
+            accessor.field.setShort(obj, value);
         } catch (IllegalAccessException e) {
             // should not happen
             XposedBridge.log(e);
@@ -1024,8 +1192,11 @@ public final class XposedHelpers {
      * Returns the value of an object field in the given object instance. A class reference is not sufficient! See also {@link #findField}.
      */
     public static Object getObjectField(Object obj, String fieldName) {
+        var accessor = findFieldAccessor(obj.getClass(), fieldName);
+        if (accessor.offset >= 0 && !accessor.type.isPrimitive())
+            return UNSAFE.getObject(obj, accessor.offset);
         try {
-            return findField(obj.getClass(), fieldName).get(obj);
+            return accessor.field.get(obj);
         } catch (IllegalAccessException e) {
             // should not happen
             XposedBridge.log(e);
@@ -1047,8 +1218,11 @@ public final class XposedHelpers {
      */
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     public static boolean getBooleanField(Object obj, String fieldName) {
+        var accessor = findFieldAccessor(obj.getClass(), fieldName);
+        if (accessor.offset >= 0 && accessor.type == boolean.class)
+            return UNSAFE.getBoolean(obj, accessor.offset);
         try {
-            return findField(obj.getClass(), fieldName).getBoolean(obj);
+            return accessor.field.getBoolean(obj);
         } catch (IllegalAccessException e) {
             // should not happen
             XposedBridge.log(e);
@@ -1062,8 +1236,11 @@ public final class XposedHelpers {
      * Returns the value of a {@code byte} field in the given object instance. A class reference is not sufficient! See also {@link #findField}.
      */
     public static byte getByteField(Object obj, String fieldName) {
+        var accessor = findFieldAccessor(obj.getClass(), fieldName);
+        if (accessor.offset >= 0 && accessor.type == byte.class)
+            return UNSAFE.getByte(obj, accessor.offset);
         try {
-            return findField(obj.getClass(), fieldName).getByte(obj);
+            return accessor.field.getByte(obj);
         } catch (IllegalAccessException e) {
             // should not happen
             XposedBridge.log(e);
@@ -1077,8 +1254,11 @@ public final class XposedHelpers {
      * Returns the value of a {@code char} field in the given object instance. A class reference is not sufficient! See also {@link #findField}.
      */
     public static char getCharField(Object obj, String fieldName) {
+        var accessor = findFieldAccessor(obj.getClass(), fieldName);
+        if (accessor.offset >= 0 && accessor.type == char.class)
+            return UNSAFE.getChar(obj, accessor.offset);
         try {
-            return findField(obj.getClass(), fieldName).getChar(obj);
+            return accessor.field.getChar(obj);
         } catch (IllegalAccessException e) {
             // should not happen
             XposedBridge.log(e);
@@ -1092,8 +1272,11 @@ public final class XposedHelpers {
      * Returns the value of a {@code double} field in the given object instance. A class reference is not sufficient! See also {@link #findField}.
      */
     public static double getDoubleField(Object obj, String fieldName) {
+        var accessor = findFieldAccessor(obj.getClass(), fieldName);
+        if (accessor.offset >= 0 && accessor.type == double.class)
+            return UNSAFE.getDouble(obj, accessor.offset);
         try {
-            return findField(obj.getClass(), fieldName).getDouble(obj);
+            return accessor.field.getDouble(obj);
         } catch (IllegalAccessException e) {
             // should not happen
             XposedBridge.log(e);
@@ -1107,8 +1290,11 @@ public final class XposedHelpers {
      * Returns the value of a {@code float} field in the given object instance. A class reference is not sufficient! See also {@link #findField}.
      */
     public static float getFloatField(Object obj, String fieldName) {
+        var accessor = findFieldAccessor(obj.getClass(), fieldName);
+        if (accessor.offset >= 0 && accessor.type == float.class)
+            return UNSAFE.getFloat(obj, accessor.offset);
         try {
-            return findField(obj.getClass(), fieldName).getFloat(obj);
+            return accessor.field.getFloat(obj);
         } catch (IllegalAccessException e) {
             // should not happen
             XposedBridge.log(e);
@@ -1122,8 +1308,11 @@ public final class XposedHelpers {
      * Returns the value of an {@code int} field in the given object instance. A class reference is not sufficient! See also {@link #findField}.
      */
     public static int getIntField(Object obj, String fieldName) {
+        var accessor = findFieldAccessor(obj.getClass(), fieldName);
+        if (accessor.offset >= 0 && accessor.type == int.class)
+            return UNSAFE.getInt(obj, accessor.offset);
         try {
-            return findField(obj.getClass(), fieldName).getInt(obj);
+            return accessor.field.getInt(obj);
         } catch (IllegalAccessException e) {
             // should not happen
             XposedBridge.log(e);
@@ -1137,8 +1326,11 @@ public final class XposedHelpers {
      * Returns the value of a {@code long} field in the given object instance. A class reference is not sufficient! See also {@link #findField}.
      */
     public static long getLongField(Object obj, String fieldName) {
+        var accessor = findFieldAccessor(obj.getClass(), fieldName);
+        if (accessor.offset >= 0 && accessor.type == long.class)
+            return UNSAFE.getLong(obj, accessor.offset);
         try {
-            return findField(obj.getClass(), fieldName).getLong(obj);
+            return accessor.field.getLong(obj);
         } catch (IllegalAccessException e) {
             // should not happen
             XposedBridge.log(e);
@@ -1152,8 +1344,11 @@ public final class XposedHelpers {
      * Returns the value of a {@code short} field in the given object instance. A class reference is not sufficient! See also {@link #findField}.
      */
     public static short getShortField(Object obj, String fieldName) {
+        var accessor = findFieldAccessor(obj.getClass(), fieldName);
+        if (accessor.offset >= 0 && accessor.type == short.class)
+            return UNSAFE.getShort(obj, accessor.offset);
         try {
-            return findField(obj.getClass(), fieldName).getShort(obj);
+            return accessor.field.getShort(obj);
         } catch (IllegalAccessException e) {
             // should not happen
             XposedBridge.log(e);
@@ -1604,6 +1799,9 @@ public final class XposedHelpers {
      * Attaches any value to an object instance. This simulates adding an instance field.
      * The value can be retrieved again with {@link #getAdditionalInstanceField}.
      *
+     * <p>Instances are compared by identity and are only weakly referenced, but a value
+     * referencing its own instance keeps both alive.
+     *
      * @param obj   The object instance for which the value should be stored.
      * @param key   The key in the value map for this object instance.
      * @param value The value to store.
@@ -1615,18 +1813,12 @@ public final class XposedHelpers {
         if (key == null)
             throw new NullPointerException("key must not be null");
 
-        HashMap<String, Object> objectFields;
-        synchronized (additionalFields) {
-            objectFields = additionalFields.get(obj);
-            if (objectFields == null) {
-                objectFields = new HashMap<>();
-                additionalFields.put(obj, objectFields);
-            }
-        }
+        var objectFields = additionalFields.get(obj);
+        if (objectFields == null)
+            objectFields = additionalFields.computeIfAbsent(obj, k -> new ConcurrentHashMap<>());
 
-        synchronized (objectFields) {
-            return objectFields.put(key, value);
-        }
+        // a null value is indistinguishable from an absent one
+        return value == null ? objectFields.remove(key) : objectFields.put(key, value);
     }
 
     /**
@@ -1642,16 +1834,10 @@ public final class XposedHelpers {
         if (key == null)
             throw new NullPointerException("key must not be null");
 
-        HashMap<String, Object> objectFields;
-        synchronized (additionalFields) {
-            objectFields = additionalFields.get(obj);
-            if (objectFields == null)
-                return null;
-        }
-
-        synchronized (objectFields) {
-            return objectFields.get(key);
-        }
+        var objectFields = additionalFields.get(obj);
+        if (objectFields == null)
+            return null;
+        return objectFields.get(key);
     }
 
     /**
@@ -1667,16 +1853,10 @@ public final class XposedHelpers {
         if (key == null)
             throw new NullPointerException("key must not be null");
 
-        HashMap<String, Object> objectFields;
-        synchronized (additionalFields) {
-            objectFields = additionalFields.get(obj);
-            if (objectFields == null)
-                return null;
-        }
-
-        synchronized (objectFields) {
-            return objectFields.remove(key);
-        }
+        var objectFields = additionalFields.get(obj);
+        if (objectFields == null)
+            return null;
+        return objectFields.remove(key);
     }
 
     /**
@@ -1782,7 +1962,8 @@ public final class XposedHelpers {
      * @return The updated depth.
      */
     public static int incrementMethodDepth(String method) {
-        return getMethodDepthCounter(method).get().incrementAndGet();
+        int index = getMethodDepthIndex(method);
+        return ++getMethodDepths(index)[index];
     }
 
     /**
@@ -1793,7 +1974,8 @@ public final class XposedHelpers {
      * @return The updated depth.
      */
     public static int decrementMethodDepth(String method) {
-        return getMethodDepthCounter(method).get().decrementAndGet();
+        int index = getMethodDepthIndex(method);
+        return --getMethodDepths(index)[index];
     }
 
     /**
@@ -1804,23 +1986,28 @@ public final class XposedHelpers {
      * @return The updated depth.
      */
     public static int getMethodDepth(String method) {
-        return getMethodDepthCounter(method).get().get();
+        int index = getMethodDepthIndex(method);
+        return getMethodDepths(index)[index];
     }
 
-    private static ThreadLocal<AtomicInteger> getMethodDepthCounter(String method) {
-        synchronized (sMethodDepth) {
-            ThreadLocal<AtomicInteger> counter = sMethodDepth.get(method);
-            if (counter == null) {
-                counter = new ThreadLocal<AtomicInteger>() {
-                    @Override
-                    protected AtomicInteger initialValue() {
-                        return new AtomicInteger();
-                    }
-                };
-                sMethodDepth.put(method, counter);
-            }
-            return counter;
+    /**
+     * Every method name gets a process-wide slot in the per-thread depth array, so counting only
+     * takes a lock-free map lookup and never touches state shared between threads.
+     */
+    private static int getMethodDepthIndex(String method) {
+        var index = sMethodDepthIndex.get(method);
+        if (index == null)
+            index = sMethodDepthIndex.computeIfAbsent(method, k -> sMethodDepthCount.getAndIncrement());
+        return index;
+    }
+
+    private static int[] getMethodDepths(int index) {
+        var depths = sMethodDepth.get();
+        if (index >= depths.length) {
+            depths = Arrays.copyOf(depths, Math.max(index + 1, depths.length * 2));
+            sMethodDepth.set(depths);
         }
+        return depths;
     }
 
     //#################################################################################################
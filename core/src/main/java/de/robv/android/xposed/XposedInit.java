@@ -57,6 +57,9 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
 
 import de.robv.android.xposed.callbacks.XC_InitPackageResources;
 import de.robv.android.xposed.callbacks.XCallback;
@@ -225,27 +228,77 @@ public final class XposedInit {
 
     public static void loadLegacyModules() {
         var moduleList = serviceClient.getLegacyModulesList();
-        moduleList.forEach(module -> {
+        var loaders = prepareConcurrently(moduleList, module -> prepareModule(module.packageName, module.apkPath, module.file));
+        for (int i = 0; i < moduleList.size(); i++) {
+            var module = moduleList.get(i);
             var apk = module.apkPath;
             var name = module.packageName;
             var file = module.file;
             loadedModules.put(name, Optional.of(apk)); // temporarily add it for XSharedPreference
-            if (!loadModule(name, apk, file)) {
+            if (!loadModule(loaders.get(i), apk, file)) {
                 loadedModules.remove(name);
             }
-        });
+        }
     }
 
     public static void loadModules(ActivityThread at) {
         var packages = (ArrayMap<?, ?>) XposedHelpers.getObjectField(at, "mPackages");
-        serviceClient.getModulesList().forEach(module -> {
+        var moduleList = serviceClient.getModulesList();
+        var moduleClasses = prepareConcurrently(moduleList, LSPosedContext::prepareModule);
+        for (int i = 0; i < moduleList.size(); i++) {
+            var module = moduleList.get(i);
             loadedModules.put(module.packageName, Optional.empty());
-            if (!LSPosedContext.loadModule(at, module)) {
+            if (moduleClasses.get(i) == null || !LSPosedContext.loadModule(at, module, moduleClasses.get(i))) {
                 loadedModules.remove(module.packageName);
             } else {
                 packages.remove(module.packageName);
             }
-        });
+        }
+    }
+
+    /**
+     * Applies {@code prepare} to every module on a few short-lived threads. Results are in the
+     * order of {@code modules}, {@code null} where {@code prepare} failed. Creating class loaders
+     * and loading entry classes doesn't depend on other modules, unlike running module code,
+     * which stays on the calling thread in the order of the module list.
+     */
+    private static <T, R> List<R> prepareConcurrently(List<T> modules, Function<T, R> prepare) {
+        var results = new AtomicReferenceArray<R>(modules.size());
+        var next = new AtomicInteger();
+        Runnable worker = () -> {
+            for (int i; (i = next.getAndIncrement()) < modules.size(); ) {
+                try {
+                    results.set(i, prepare.apply(modules.get(i)));
+                } catch (Throwable t) {
+                    Log.e(TAG, "Failed to prepare module", t);
+                }
+            }
+        };
+        int threads = Math.min(modules.size(), Runtime.getRuntime().availableProcessors()) - 1;
+        var workers = new ArrayList<Thread>(Math.max(threads, 0));
+        for (int i = 0; i < threads; i++) {
+            var thread = new Thread(worker, "XposedInit-load-" + i);
+            thread.start();
+            workers.add(thread);
+        }
+        worker.run();
+        boolean interrupted = false;
+        for (var thread : workers) {
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        var list = new ArrayList<R>(modules.size());
+        for (int i = 0; i < modules.size(); i++) {
+            list.add(results.get(i));
+        }
+        return list;
     }
 
     /**
@@ -297,10 +350,11 @@ public final class XposedInit {
     }
 
     /**
-     * Load a module from an APK by calling the init(String) method for all classes defined
-     * in <code>assets/xposed_init</code>.
+     * Create the class loader of a legacy module, without running any of its code.
+     *
+     * @return {@code null} if the module can't be loaded
      */
-    private static boolean loadModule(String name, String apk, PreLoadedApk file) {
+    private static ClassLoader prepareModule(String name, String apk, PreLoadedApk file) {
         Log.i(TAG, "Loading legacy module " + name + " from " + apk);
 
         var sb = new StringBuilder();
@@ -319,11 +373,28 @@ public final class XposedInit {
                 Log.e(TAG, "  The Xposed API classes are compiled into the module's APK.");
                 Log.e(TAG, "  This may cause strange issues and must be fixed by the module developer.");
                 Log.e(TAG, "  For details, see: https://api.xposed.info/using.html");
-                return false;
+                return null;
             }
         } catch (ClassNotFoundException ignored) {
-            return false;
+            return null;
+        }
+        // only resolve the entry classes, initializing them would run module code
+        for (var moduleClassName : file.moduleClassNames) {
+            try {
+                Class.forName(moduleClassName, false, mcl);
+            } catch (Throwable ignored) {
+                // reported by initModule
+            }
         }
+        return mcl;
+    }
+
+    /**
+     * Load a module from an APK by calling the init(String) method for all classes defined
+     * in <code>assets/xposed_init</code>.
+     */
+    private static boolean loadModule(ClassLoader mcl, String apk, PreLoadedApk file) {
+        if (mcl == null) return false;
         initNativeModule(file.moduleLibraryNames);
         return initModule(mcl, apk, file.moduleClassNames);
     }
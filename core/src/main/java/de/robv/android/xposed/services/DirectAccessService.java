@@ -20,6 +20,9 @@
 
 package de.robv.android.xposed.services;
 
+import android.system.ErrnoException;
+import android.system.Os;
+
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -53,8 +56,15 @@ public final class DirectAccessService extends BaseService {
 
     @Override
     public FileResult statFile(String filename) throws IOException {
-        File file = new File(filename);
-        return new FileResult(file.length(), file.lastModified());
+        try {
+            var stat = Os.stat(filename);
+            // same millisecond precision as File.lastModified()
+            var mtime = stat.st_mtim.tv_sec * 1000 + stat.st_mtim.tv_nsec / 1000000;
+            return new FileResult(stat.st_size, mtime, stat.st_ino);
+        } catch (ErrnoException e) {
+            // File.length() and File.lastModified() report missing files as zero as well
+            return new FileResult(0, 0);
+        }
     }
 
     @Override
@@ -42,12 +42,21 @@ public final class FileResult {
      * File last modification time.
      */
     public final long mtime;
+    /**
+     * File inode number, or {@code 0} if it is unknown.
+     */
+    public final long inode;
 
     /*package*/ FileResult(long size, long mtime) {
+        this(size, mtime, 0);
+    }
+
+    /*package*/ FileResult(long size, long mtime, long inode) {
         this.content = null;
         this.stream = null;
         this.size = size;
         this.mtime = mtime;
+        this.inode = inode;
     }
 
     /*package*/ FileResult(byte[] content, long size, long mtime) {
@@ -55,6 +64,7 @@ public final class FileResult {
         this.stream = null;
         this.size = size;
         this.mtime = mtime;
+        this.inode = 0;
     }
 
     /*package*/ FileResult(InputStream stream, long size, long mtime) {
@@ -62,6 +72,7 @@ public final class FileResult {
         this.stream = stream;
         this.size = size;
         this.mtime = mtime;
+        this.inode = 0;
     }
 
     /**
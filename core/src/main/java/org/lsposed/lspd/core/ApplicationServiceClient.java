@@ -93,6 +93,14 @@ public class ApplicationServiceClient implements ILSPApplicationService, IBinder
         return null;
     }
 
+    @Override
+    public void registerHookStatsProvider(int pid, IBinder provider) {
+        try {
+            service.registerHookStatsProvider(pid, provider);
+        } catch (RemoteException | NullPointerException ignored) {
+        }
+    }
+
     @Override
     public IBinder asBinder() {
         return service.asBinder();
@@ -24,6 +24,7 @@ import android.app.ActivityThread;
 import android.app.LoadedApk;
 import android.content.pm.ApplicationInfo;
 import android.content.res.CompatibilityInfo;
+import android.os.Process;
 
 import com.android.internal.os.ZygoteInit;
 
@@ -34,6 +35,7 @@ import org.lsposed.lspd.hooker.HandleSystemServerProcessHooker;
 import org.lsposed.lspd.hooker.LoadedApkCtorHooker;
 import org.lsposed.lspd.hooker.LoadedApkCreateCLHooker;
 import org.lsposed.lspd.hooker.OpenDexFileHooker;
+import org.lsposed.lspd.impl.HookStats;
 import org.lsposed.lspd.impl.LSPosedContext;
 import org.lsposed.lspd.impl.LSPosedHelper;
 import org.lsposed.lspd.service.ILSPApplicationService;
@@ -76,6 +78,9 @@ public class Startup {
     public static void initXposed(boolean isSystem, String processName, String appDir, ILSPApplicationService service) {
         // init logger
         ApplicationServiceClient.Init(service, processName);
+        if (ApplicationServiceClient.serviceClient != null) {
+            ApplicationServiceClient.serviceClient.registerHookStatsProvider(Process.myPid(), HookStats.provider);
+        }
         XposedBridge.initXResources();
         XposedInit.startsSystemServer = isSystem;
         LSPosedContext.isSystemServer = isSystem;
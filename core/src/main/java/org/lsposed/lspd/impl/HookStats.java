@@ -0,0 +1,104 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2026 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.impl;
+
+import android.os.RemoteException;
+
+import org.lsposed.lspd.models.HookStat;
+import org.lsposed.lspd.service.IHookStatsCallback;
+import org.lsposed.lspd.service.IHookStatsProvider;
+
+import java.lang.reflect.Executable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Invocation counters of a single hooked method. Only updated while collection is enabled
+ * by the daemon, otherwise the hook dispatcher pays a single volatile read.
+ */
+public final class HookStats {
+    static volatile boolean enabled = false;
+
+    // Oneway calls share a buffer of a few hundred KiB, so stats go in small chunks, and only
+    // for the most called hooks
+    private static final int MAX_REPORTED = 1024;
+    private static final int CHUNK_SIZE = 128;
+
+    private static final ConcurrentLinkedQueue<HookStats> allStats = new ConcurrentLinkedQueue<>();
+
+    public static final IHookStatsProvider.Stub provider = new IHookStatsProvider.Stub() {
+        @Override
+        public void setEnabled(boolean enabled) {
+            HookStats.enabled = enabled;
+        }
+
+        @Override
+        public void requestHookStats(IHookStatsCallback callback) throws RemoteException {
+            var stats = getHookStats();
+            stats.sort((a, b) -> Long.compare(b.callCount, a.callCount));
+            int size = Math.min(stats.size(), MAX_REPORTED);
+            int offset = 0;
+            do {
+                int end = Math.min(offset + CHUNK_SIZE, size);
+                callback.onHookStats(stats.subList(offset, end), end == size);
+                offset = end;
+            } while (offset < size);
+        }
+
+        private List<HookStat> getHookStats() {
+            var result = new ArrayList<HookStat>();
+            for (var stats : allStats) {
+                var callCount = stats.callCount.get();
+                if (callCount == 0) continue;
+                var stat = new HookStat();
+                stat.method = stats.method.toString();
+                stat.callCount = callCount;
+                stat.totalCallbackNanos = stats.totalCallbackNanos.get();
+                stat.maxCallbackNanos = stats.maxCallbackNanos.get();
+                stat.exceptionCount = stats.exceptionCount.get();
+                result.add(stat);
+            }
+            return result;
+        }
+    };
+
+    private final Executable method;
+    private final AtomicLong callCount = new AtomicLong();
+    private final AtomicLong totalCallbackNanos = new AtomicLong();
+    private final AtomicLong maxCallbackNanos = new AtomicLong();
+    private final AtomicLong exceptionCount = new AtomicLong();
+
+    HookStats(Executable method) {
+        this.method = method;
+        allStats.add(this);
+    }
+
+    void record(long callbackNanos, int exceptions) {
+        callCount.incrementAndGet();
+        totalCallbackNanos.addAndGet(callbackNanos);
+        long max;
+        while (callbackNanos > (max = maxCallbackNanos.get())) {
+            if (maxCallbackNanos.compareAndSet(max, callbackNanos)) break;
+        }
+        if (exceptions != 0) exceptionCount.addAndGet(exceptions);
+    }
+}
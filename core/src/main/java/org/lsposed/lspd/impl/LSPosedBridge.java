@@ -6,11 +6,16 @@ import androidx.annotation.NonNull;
 
 import org.lsposed.lspd.nativebridge.HookBridge;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Executable;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
 
+import de.robv.android.xposed.XC_MethodHook;
 import de.robv.android.xposed.XposedBridge;
 import io.github.libxposed.api.XposedInterface;
 import io.github.libxposed.api.annotations.AfterInvocation;
@@ -36,20 +41,37 @@ public class LSPosedBridge {
         getCause = tmp;
     }
 
+    private static final ConcurrentHashMap<Class<?>, HookerCallback> hookerCallbacks = new ConcurrentHashMap<>();
+
     public static class HookerCallback {
+        // (LSPosedHookCallback)Object
         @NonNull
-        final Method beforeInvocation;
+        final MethodHandle beforeInvocation;
+        // (LSPosedHookCallback, Object)void
         @NonNull
-        final Method afterInvocation;
+        final MethodHandle afterInvocation;
+
+        public HookerCallback(@NonNull Method beforeInvocation, @NonNull Method afterInvocation) throws IllegalAccessException {
+            var lookup = MethodHandles.lookup();
+            beforeInvocation.setAccessible(true);
+            afterInvocation.setAccessible(true);
 
-        final int beforeParams;
-        final int afterParams;
+            var before = lookup.unreflect(beforeInvocation);
+            if (beforeInvocation.getParameterCount() == 0) {
+                before = MethodHandles.dropArguments(before, 0, LSPosedHookCallback.class);
+            }
+            this.beforeInvocation = before.asType(MethodType.methodType(Object.class, LSPosedHookCallback.class));
 
-        public HookerCallback(@NonNull Method beforeInvocation, @NonNull Method afterInvocation) {
-            this.beforeInvocation = beforeInvocation;
-            this.afterInvocation = afterInvocation;
-            this.beforeParams = beforeInvocation.getParameterCount();
-            this.afterParams = afterInvocation.getParameterCount();
+            var after = lookup.unreflect(afterInvocation);
+            switch (afterInvocation.getParameterCount()) {
+                case 0:
+                    after = MethodHandles.dropArguments(after, 0, LSPosedHookCallback.class, Object.class);
+                    break;
+                case 1:
+                    after = MethodHandles.dropArguments(after, 1, Object.class);
+                    break;
+            }
+            this.afterInvocation = after.asType(MethodType.methodType(void.class, LSPosedHookCallback.class, Object.class));
         }
     }
 
@@ -63,8 +85,15 @@ public class LSPosedBridge {
     }
 
     public static class NativeHooker<T extends Executable> {
+        private static final Object[][] EMPTY_SNAPSHOT = {new Object[0], new Object[0]};
+
         private final Object params;
 
+        // Published by native whenever a callback is added or removed; never mutated in place
+        private volatile Object[][] callbacksSnapshot = EMPTY_SNAPSHOT;
+
+        private final HookStats stats;
+
         private NativeHooker(Executable method) {
             var isStatic = Modifier.isStatic(method.getModifiers());
             Object returnType;
@@ -78,45 +107,87 @@ public class LSPosedBridge {
                     returnType,
                     isStatic,
             };
+            stats = new HookStats(method);
         }
 
         // This method is quite critical. We should try not to use system methods to avoid
         // endless recursive
         public Object callback(Object[] args) throws Throwable {
-            LSPosedHookCallback<T> callback = new LSPosedHookCallback<>();
-
             var array = ((Object[]) params);
 
             var method = (T) array[0];
             var returnType = (Class<?>) array[1];
             var isStatic = (Boolean) array[2];
 
-            callback.method = method;
-
+            Object thisObject;
             if (isStatic) {
-                callback.thisObject = null;
-                callback.args = args;
+                thisObject = null;
             } else {
-                callback.thisObject = args[0];
-                callback.args = new Object[args.length - 1];
+                thisObject = args[0];
+                var realArgs = new Object[args.length - 1];
                 //noinspection ManualArrayCopy
                 for (int i = 0; i < args.length - 1; ++i) {
-                    callback.args[i] = args[i + 1];
+                    realArgs[i] = args[i + 1];
                 }
+                args = realArgs;
             }
 
-            Object[][] callbacksSnapshot = HookBridge.callbackSnapshot(HookerCallback.class, method);
+            Object[][] callbacksSnapshot = this.callbacksSnapshot;
             Object[] modernSnapshot = callbacksSnapshot[0];
             Object[] legacySnapshot = callbacksSnapshot[1];
 
             if (modernSnapshot.length == 0 && legacySnapshot.length == 0) {
                 try {
-                    return HookBridge.invokeOriginalMethod(method, callback.thisObject, callback.args);
+                    return HookBridge.invokeOriginalMethod(method, thisObject, args);
                 } catch (InvocationTargetException ite) {
                     throw (Throwable) HookBridge.invokeOriginalMethod(getCause, ite);
                 }
             }
 
+            boolean recording = HookStats.enabled;
+            long start = recording ? System.nanoTime() : 0L;
+            long originalNanos = 0L;
+            int exceptions = 0;
+
+            if (modernSnapshot.length == 0) {
+                // Legacy callbacks only: let the MethodHookParam carry the call state itself
+                // instead of mirroring it into a LSPosedHookCallback
+                var param = new XC_MethodHook.MethodHookParam<T>();
+                param.method = method;
+                param.thisObject = thisObject;
+                param.args = args;
+
+                var legacy = new XposedBridge.LegacyApiSupport<>(param, legacySnapshot);
+                legacy.handleBefore();
+
+                // call original method if not requested otherwise
+                if (!param.returnEarly) {
+                    long originalStart = recording ? System.nanoTime() : 0L;
+                    try {
+                        param.result = HookBridge.invokeOriginalMethod(method, param.thisObject, param.args);
+                        param.throwable = null;
+                    } catch (InvocationTargetException e) {
+                        param.result = null;
+                        param.throwable = (Throwable) HookBridge.invokeOriginalMethod(getCause, e);
+                    }
+                    if (recording) originalNanos = System.nanoTime() - originalStart;
+                }
+
+                legacy.handleAfter();
+                exceptions += legacy.getExceptionCount();
+
+                if (recording) {
+                    stats.record(System.nanoTime() - start - originalNanos, exceptions);
+                }
+
+                return returnOrThrow(param.result, param.throwable, returnType);
+            }
+
+            LSPosedHookCallback<T> callback = new LSPosedHookCallback<>();
+            callback.method = method;
+            callback.thisObject = thisObject;
+            callback.args = args;
+
             Object[] ctxArray = new Object[modernSnapshot.length];
             XposedBridge.LegacyApiSupport<T> legacy = null;
 
@@ -125,13 +196,10 @@ public class LSPosedBridge {
             for (beforeIdx = 0; beforeIdx < modernSnapshot.length; beforeIdx++) {
                 try {
                     var hooker = (HookerCallback) modernSnapshot[beforeIdx];
-                    if (hooker.beforeParams == 0) {
-                        ctxArray[beforeIdx] = hooker.beforeInvocation.invoke(null);
-                    } else {
-                        ctxArray[beforeIdx] = hooker.beforeInvocation.invoke(null, callback);
-                    }
+                    ctxArray[beforeIdx] = (Object) hooker.beforeInvocation.invokeExact(callback);
                 } catch (Throwable t) {
                     LSPosedBridge.log(t);
+                    exceptions++;
 
                     // reset result (ignoring what the unexpectedly exiting callback did)
                     callback.setResult(null);
@@ -154,6 +222,7 @@ public class LSPosedBridge {
 
             // call original method if not requested otherwise
             if (!callback.isSkipped) {
+                long originalStart = recording ? System.nanoTime() : 0L;
                 try {
                     var result = HookBridge.invokeOriginalMethod(method, callback.thisObject, callback.args);
                     callback.setResult(result);
@@ -161,6 +230,7 @@ public class LSPosedBridge {
                     var throwable = (Throwable) HookBridge.invokeOriginalMethod(getCause, e);
                     callback.setThrowable(throwable);
                 }
+                if (recording) originalNanos = System.nanoTime() - originalStart;
             }
 
             // call "after method" callbacks
@@ -169,15 +239,10 @@ public class LSPosedBridge {
                 Throwable lastThrowable = callback.getThrowable();
                 var hooker = (HookerCallback) modernSnapshot[afterIdx];
                 try {
-                    if (hooker.afterParams == 0) {
-                        hooker.afterInvocation.invoke(null);
-                    } else if (hooker.afterParams == 1) {
-                        hooker.afterInvocation.invoke(null, callback);
-                    } else {
-                        hooker.afterInvocation.invoke(null, callback, ctxArray[afterIdx]);
-                    }
+                    hooker.afterInvocation.invokeExact(callback, ctxArray[afterIdx]);
                 } catch (Throwable t) {
                     LSPosedBridge.log(t);
+                    exceptions++;
 
                     // reset to last result (ignoring what the unexpectedly exiting callback did)
                     if (lastThrowable == null) {
@@ -190,14 +255,20 @@ public class LSPosedBridge {
 
             if (legacy != null) {
                 legacy.handleAfter();
+                exceptions += legacy.getExceptionCount();
             }
 
-            // return
-            var t = callback.getThrowable();
+            if (recording) {
+                stats.record(System.nanoTime() - start - originalNanos, exceptions);
+            }
+
+            return returnOrThrow(callback.getResult(), callback.getThrowable(), returnType);
+        }
+
+        private static Object returnOrThrow(Object result, Throwable t, Class<?> returnType) throws Throwable {
             if (t != null) {
                 throw t;
             } else {
-                var result = callback.getResult();
                 if (returnType != null && !returnType.isPrimitive() && !HookBridge.instanceOf(result, returnType)) {
                     throw new ClassCastException(castException);
                 }
@@ -206,20 +277,46 @@ public class LSPosedBridge {
         }
     }
 
+    private static char getTypeShorty(Class<?> type) {
+        if (type == int.class) {
+            return 'I';
+        } else if (type == long.class) {
+            return 'J';
+        } else if (type == float.class) {
+            return 'F';
+        } else if (type == double.class) {
+            return 'D';
+        } else if (type == boolean.class) {
+            return 'Z';
+        } else if (type == byte.class) {
+            return 'B';
+        } else if (type == char.class) {
+            return 'C';
+        } else if (type == short.class) {
+            return 'S';
+        } else if (type == void.class) {
+            return 'V';
+        } else {
+            return 'L';
+        }
+    }
+
+    // Passed to native when hooking, which plans the argument unboxing of invokeSpecial with it
+    public static char[] getExecutableShorty(Executable executable) {
+        var parameterTypes = executable.getParameterTypes();
+        var shorty = new char[parameterTypes.length + 1];
+        shorty[0] = getTypeShorty(executable instanceof Method ? ((Method) executable).getReturnType() : void.class);
+        for (int i = 1; i < shorty.length; i++) {
+            shorty[i] = getTypeShorty(parameterTypes[i - 1]);
+        }
+        return shorty;
+    }
+
     public static void dummyCallback() {
     }
 
-    public static <T extends Executable> XposedInterface.MethodUnhooker<T>
-    doHook(T hookMethod, int priority, Class<? extends XposedInterface.Hooker> hooker) {
-        if (Modifier.isAbstract(hookMethod.getModifiers())) {
-            throw new IllegalArgumentException("Cannot hook abstract methods: " + hookMethod);
-        } else if (hookMethod.getDeclaringClass().getClassLoader() == LSPosedContext.class.getClassLoader()) {
-            throw new IllegalArgumentException("Do not allow hooking inner methods");
-        } else if (hookMethod.getDeclaringClass() == Method.class && hookMethod.getName().equals("invoke")) {
-            throw new IllegalArgumentException("Cannot hook Method.invoke");
-        } else if (hooker == null) {
-            throw new IllegalArgumentException("hooker should not be null!");
-        } else if (hooker.getAnnotation(XposedHooker.class) == null) {
+    private static HookerCallback parseHooker(Class<?> hooker) {
+        if (hooker.getAnnotation(XposedHooker.class) == null) {
             throw new IllegalArgumentException("Hooker should be annotated with @XposedHooker");
         }
 
@@ -275,12 +372,26 @@ public class LSPosedBridge {
                     throw new IllegalArgumentException("BeforeInvocation and AfterInvocation method format is invalid");
                 }
             }
-        } catch (NoSuchMethodException e) {
+            return new HookerCallback(beforeInvocation, afterInvocation);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
             throw new HookFailedError(e);
         }
+    }
+
+    public static <T extends Executable> XposedInterface.MethodUnhooker<T>
+    doHook(T hookMethod, int priority, Class<? extends XposedInterface.Hooker> hooker) {
+        if (Modifier.isAbstract(hookMethod.getModifiers())) {
+            throw new IllegalArgumentException("Cannot hook abstract methods: " + hookMethod);
+        } else if (hookMethod.getDeclaringClass().getClassLoader() == LSPosedContext.class.getClassLoader()) {
+            throw new IllegalArgumentException("Do not allow hooking inner methods");
+        } else if (hookMethod.getDeclaringClass() == Method.class && hookMethod.getName().equals("invoke")) {
+            throw new IllegalArgumentException("Cannot hook Method.invoke");
+        } else if (hooker == null) {
+            throw new IllegalArgumentException("hooker should not be null!");
+        }
 
-        var callback = new LSPosedBridge.HookerCallback(beforeInvocation, afterInvocation);
-        if (HookBridge.hookMethod(true, hookMethod, LSPosedBridge.NativeHooker.class, priority, callback)) {
+        var callback = hookerCallbacks.computeIfAbsent(hooker, LSPosedBridge::parseHooker);
+        if (HookBridge.hookMethod(true, hookMethod, LSPosedBridge.NativeHooker.class, priority, callback, getExecutableShorty(hookMethod))) {
             return new XposedInterface.MethodUnhooker<>() {
                 @NonNull
                 @Override
@@ -19,6 +19,7 @@ import org.lsposed.lspd.models.Module;
 import org.lsposed.lspd.nativebridge.HookBridge;
 import org.lsposed.lspd.nativebridge.NativeAPI;
 import org.lsposed.lspd.service.ILSPInjectedModuleService;
+import org.lsposed.lspd.util.ConcurrentWeakIdentityMap;
 import org.lsposed.lspd.util.LspModuleClassLoader;
 
 import java.io.File;
@@ -31,9 +32,12 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Proxy;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import io.github.libxposed.api.XposedInterface;
 import io.github.libxposed.api.XposedModule;
@@ -51,7 +55,11 @@ public class LSPosedContext implements XposedInterface {
     public static String appDir;
     public static String processName;
 
-    static final Set<XposedModule> modules = ConcurrentHashMap.newKeySet();
+    // in load order, so callbacks run in the order the modules are listed
+    static final Set<XposedModule> modules = new CopyOnWriteArraySet<>();
+
+    // Hooked executables have theirs on the hook, this only serves invokeSpecial on others
+    private static final ConcurrentWeakIdentityMap<Executable, char[]> shorties = new ConcurrentWeakIdentityMap<>();
 
     private final String mPackageName;
     private final ApplicationInfo mApplicationInfo;
@@ -84,8 +92,14 @@ public class LSPosedContext implements XposedInterface {
         }
     }
 
-    @SuppressLint("DiscouragedPrivateApi")
-    public static boolean loadModule(ActivityThread at, Module module) {
+    /**
+     * Creates the class loader of a module and loads its entry classes without initializing
+     * them, so no module code runs. Modules may be prepared concurrently.
+     *
+     * @return the entry classes, or {@code null} if the module can't be loaded
+     */
+    @Nullable
+    public static List<Class<?>> prepareModule(Module module) {
         try {
             Log.d(TAG, "Loading module " + module.packageName);
             var sb = new StringBuilder();
@@ -100,11 +114,28 @@ public class LSPosedContext implements XposedInterface {
                 Log.e(TAG, "  Cannot load module: " + module.packageName);
                 Log.e(TAG, "  The Xposed API classes are compiled into the module's APK.");
                 Log.e(TAG, "  This may cause strange issues and must be fixed by the module developer.");
-                return false;
+                return null;
             }
-            var ctx = new LSPosedContext(module.packageName, module.applicationInfo, module.service);
+            var moduleClasses = new ArrayList<Class<?>>(module.file.moduleClassNames.size());
             for (var entry : module.file.moduleClassNames) {
-                var moduleClass = mcl.loadClass(entry);
+                moduleClasses.add(Class.forName(entry, false, mcl));
+            }
+            return moduleClasses;
+        } catch (Throwable e) {
+            Log.d(TAG, "Loading module " + module.packageName, e);
+            return null;
+        }
+    }
+
+    /**
+     * Instantiates the entry classes returned by {@link #prepareModule}, which runs module code.
+     * Called for one module at a time, in the order of the module list.
+     */
+    @SuppressLint("DiscouragedPrivateApi")
+    public static boolean loadModule(ActivityThread at, Module module, List<Class<?>> moduleClasses) {
+        try {
+            var ctx = new LSPosedContext(module.packageName, module.applicationInfo, module.service);
+            for (var moduleClass : moduleClasses) {
                 Log.d(TAG, "  Loading class " + moduleClass);
                 if (!XposedModule.class.isAssignableFrom(moduleClass)) {
                     Log.e(TAG, "    This class doesn't implement any sub-interface of XposedModule, skipping it");
@@ -213,38 +244,8 @@ public class LSPosedContext implements XposedInterface {
         return HookBridge.invokeOriginalMethod(method, thisObject, args);
     }
 
-    private static char getTypeShorty(Class<?> type) {
-        if (type == int.class) {
-            return 'I';
-        } else if (type == long.class) {
-            return 'J';
-        } else if (type == float.class) {
-            return 'F';
-        } else if (type == double.class) {
-            return 'D';
-        } else if (type == boolean.class) {
-            return 'Z';
-        } else if (type == byte.class) {
-            return 'B';
-        } else if (type == char.class) {
-            return 'C';
-        } else if (type == short.class) {
-            return 'S';
-        } else if (type == void.class) {
-            return 'V';
-        } else {
-            return 'L';
-        }
-    }
-
     private static char[] getExecutableShorty(Executable executable) {
-        var parameterTypes = executable.getParameterTypes();
-        var shorty = new char[parameterTypes.length + 1];
-        shorty[0] = getTypeShorty(executable instanceof Method ? ((Method) executable).getReturnType() : void.class);
-        for (int i = 1; i < shorty.length; i++) {
-            shorty[i] = getTypeShorty(parameterTypes[i - 1]);
-        }
-        return shorty;
+        return shorties.computeIfAbsent(executable, LSPosedBridge::getExecutableShorty);
     }
 
     @Nullable
@@ -291,6 +292,32 @@ public class LSPosedContext implements XposedInterface {
         return new LSPosedDexParser(dexData, includeAnnotations);
     }
 
+    /**
+     * Returns what {@link #putDexScanCache} stored for the key, or {@code null} if nothing was
+     * stored since the APK's content or the module's version last changed.
+     */
+    @Nullable
+    public byte[] getDexScanCache(@NonNull String apkPath, @NonNull String key) {
+        try (var apk = ParcelFileDescriptor.open(new File(apkPath), ParcelFileDescriptor.MODE_READ_ONLY)) {
+            return service.getDexScanCache(apk, key);
+        } catch (IOException | RemoteException e) {
+            log("Failed to get dex scan cache", e);
+            return null;
+        }
+    }
+
+    /**
+     * Keeps a result of scanning the dex files of an APK, such as the names of obfuscated
+     * classes, across launches. At most 512 KiB per key.
+     */
+    public void putDexScanCache(@NonNull String apkPath, @NonNull String key, @NonNull byte[] value) {
+        try (var apk = ParcelFileDescriptor.open(new File(apkPath), ParcelFileDescriptor.MODE_READ_ONLY)) {
+            service.putDexScanCache(apk, key, value);
+        } catch (IOException | RemoteException e) {
+            log("Failed to put dex scan cache", e);
+        }
+    }
+
     @NonNull
     @Override
     public ApplicationInfo getApplicationInfo() {
@@ -311,6 +338,20 @@ public class LSPosedContext implements XposedInterface {
         });
     }
 
+    /**
+     * Like registering the listener on {@link #getRemotePreferences}, but it is only called
+     * when {@code key} changes, and other changes of the group don't wake it.
+     */
+    public void registerOnRemotePreferenceChangeListener(@NonNull String name, @NonNull String key,
+                                                         @NonNull SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        ((LSPosedRemotePreferences) getRemotePreferences(name)).registerOnSharedPreferenceChangeListener(key, listener);
+    }
+
+    public void unregisterOnRemotePreferenceChangeListener(@NonNull String name, @NonNull String key,
+                                                           @NonNull SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        ((LSPosedRemotePreferences) getRemotePreferences(name)).unregisterOnSharedPreferenceChangeListener(key, listener);
+    }
+
     @NonNull
     @Override
     public String[] listRemoteFiles() {
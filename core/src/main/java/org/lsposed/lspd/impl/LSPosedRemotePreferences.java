@@ -1,62 +1,77 @@
 package org.lsposed.lspd.impl;
 
 import android.content.SharedPreferences;
-import android.os.Bundle;
 import android.os.RemoteException;
-import android.util.ArraySet;
+import android.util.Log;
 
 import androidx.annotation.Nullable;
 
 import org.lsposed.lspd.service.ILSPInjectedModuleService;
 import org.lsposed.lspd.service.IRemotePreferenceCallback;
+import org.lsposed.lspd.util.PreferenceDelta;
 
-import java.util.HashSet;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 @SuppressWarnings("unchecked")
 public class LSPosedRemotePreferences implements SharedPreferences {
 
+    private static final String TAG = "LSPosedRemotePreferences";
+
     private final Map<String, Object> mMap = new ConcurrentHashMap<>();
 
-    final HashSet<OnSharedPreferenceChangeListener> mListeners = new HashSet<>();
+    final Set<OnSharedPreferenceChangeListener> mListeners = new CopyOnWriteArraySet<>();
+    final Map<String, Set<OnSharedPreferenceChangeListener>> mKeyListeners = new ConcurrentHashMap<>();
 
     IRemotePreferenceCallback callback = new IRemotePreferenceCallback.Stub() {
+        // binder delivers oneway calls to the same object one after another, so no locking here
         @Override
-        synchronized public void onUpdate(Bundle bundle) {
-            Set<String> changes = new ArraySet<>();
-            if (bundle.containsKey("delete")) {
-                var deletes = (Set<String>) bundle.getSerializable("delete");
-                changes.addAll(deletes);
-                for (var key : deletes) {
-                    mMap.remove(key);
-                }
-            }
-            if (bundle.containsKey("put")) {
-                var puts = (Map<String, Object>) bundle.getSerializable("put");
-                mMap.putAll(puts);
-                changes.addAll(puts.keySet());
+        public void onUpdate(byte[] delta) {
+            var changes = new ArrayList<String>();
+            try {
+                PreferenceDelta.decode(delta, (key, value) -> {
+                    if (value == null) {
+                        mMap.remove(key);
+                    } else {
+                        mMap.put(key, value);
+                    }
+                    changes.add(key);
+                });
+            } catch (IOException e) {
+                Log.e(TAG, "onUpdate: ", e);
             }
-            synchronized (mListeners) {
-                for (var key : changes) {
-                    mListeners.forEach(listener -> listener.onSharedPreferenceChanged(LSPosedRemotePreferences.this, key));
+            for (var key : changes) {
+                for (var listener : mListeners) {
+                    listener.onSharedPreferenceChanged(LSPosedRemotePreferences.this, key);
+                }
+                var keyListeners = mKeyListeners.get(key);
+                if (keyListeners == null) continue;
+                for (var listener : keyListeners) {
+                    listener.onSharedPreferenceChanged(LSPosedRemotePreferences.this, key);
                 }
             }
         }
     };
 
     public LSPosedRemotePreferences(ILSPInjectedModuleService service, String group) throws RemoteException {
-        Bundle output = service.requestRemotePreferences(group, callback);
-        if (output.containsKey("map")) {
-            mMap.putAll((Map<String, Object>) output.getSerializable("map"));
+        byte[] output = service.requestRemotePreferences(group, callback);
+        try {
+            PreferenceDelta.decode(output, (key, value) -> {
+                if (value != null) mMap.put(key, value);
+            });
+        } catch (IOException e) {
+            throw new RemoteException(e.getMessage());
         }
     }
 
     @Override
     public Map<String, ?> getAll() {
-        return new TreeMap<>(mMap);
+        return new HashMap<>(mMap);
     }
 
     @Nullable
@@ -115,15 +130,30 @@ public class LSPosedRemotePreferences implements SharedPreferences {
 
     @Override
     public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
-        synchronized (mListeners) {
-            mListeners.add(listener);
-        }
+        mListeners.add(listener);
     }
 
     @Override
     public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
-        synchronized (mListeners) {
-            mListeners.remove(listener);
-        }
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Like {@link #registerOnSharedPreferenceChangeListener}, but the listener is only called
+     * when {@code key} changes.
+     */
+    public void registerOnSharedPreferenceChangeListener(String key, OnSharedPreferenceChangeListener listener) {
+        mKeyListeners.compute(key, (k, listeners) -> {
+            if (listeners == null) listeners = new CopyOnWriteArraySet<>();
+            listeners.add(listener);
+            return listeners;
+        });
+    }
+
+    public void unregisterOnSharedPreferenceChangeListener(String key, OnSharedPreferenceChangeListener listener) {
+        mKeyListeners.computeIfPresent(key, (k, listeners) -> {
+            listeners.remove(listener);
+            return listeners.isEmpty() ? null : listeners;
+        });
     }
 }
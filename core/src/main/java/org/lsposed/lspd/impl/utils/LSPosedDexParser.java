@@ -7,82 +7,123 @@ import org.lsposed.lspd.nativebridge.DexParserBridge;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import io.github.libxposed.api.utils.DexParser;
 
 public class LSPosedDexParser implements DexParser {
+    /** Method bodies come with the strings they load. */
+    public static final int VISIT_REFERRED_STRINGS = 1;
+    /** Method bodies come with the methods they invoke. */
+    public static final int VISIT_INVOKED_METHODS = 1 << 1;
+    /** Method bodies come with the fields they read. */
+    public static final int VISIT_ACCESSED_FIELDS = 1 << 2;
+    /** Method bodies come with the fields they write. */
+    public static final int VISIT_ASSIGNED_FIELDS = 1 << 3;
+    /** Method bodies come with their opcodes. */
+    public static final int VISIT_OPCODES = 1 << 4;
+    public static final int VISIT_ALL = VISIT_REFERRED_STRINGS | VISIT_INVOKED_METHODS |
+            VISIT_ACCESSED_FIELDS | VISIT_ASSIGNED_FIELDS | VISIT_OPCODES;
+
+    // Classes handed to a worker at a time, small enough to balance uneven classes
+    private static final int VISIT_CHUNK = 64;
+
+    private static final ThreadPoolExecutor visitExecutor;
+
+    static {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        var count = new AtomicInteger();
+        visitExecutor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            var thread = new Thread(r, "LSPosedDexParser-visit-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        visitExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    // Visits share the native parser, close waits for them to finish
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Pool threads running a visit of this parser, they visit without holding the lock themselves
+    private final Set<Thread> visitThreads = ConcurrentHashMap.newKeySet();
     long cookie;
 
+    // Little endian view of the dex, ids are read from it on demand
     @NonNull
     final ByteBuffer data;
-    @NonNull
-    final StringId[] strings;
-    @NonNull
-    final TypeId[] typeIds;
-    @NonNull
-    final ProtoId[] protoIds;
-    @NonNull
-    final FieldId[] fieldIds;
-    @NonNull
-    final MethodId[] methodIds;
+    final int stringIdsOff;
+    final int typeIdsOff;
+    final int protoIdsOff;
+    final int fieldIdsOff;
+    final int methodIdsOff;
+    final int stringIdsSize;
+    final int typeIdsSize;
+    final int protoIdsSize;
+    final int fieldIdsSize;
+    final int methodIdsSize;
+    final int classDefsSize;
+
+    // Created on first access
+    private volatile StringId[] strings;
+    private volatile TypeId[] typeIds;
+    private volatile ProtoId[] protoIds;
+    private volatile FieldId[] fieldIds;
+    private volatile MethodId[] methodIds;
     @NonNull
     final Annotation[] annotations;
     @NonNull
     final Array[] arrays;
 
     public LSPosedDexParser(@NonNull ByteBuffer buffer, boolean includeAnnotations) throws IOException {
-        if (!buffer.isDirect() || !buffer.asReadOnlyBuffer().hasArray()) {
-            data = ByteBuffer.allocateDirect(buffer.capacity());
-            data.put(buffer);
+        ByteBuffer dex;
+        if (buffer.isDirect()) {
+            // the native side reads from the start of the buffer
+            dex = buffer.duplicate();
+            dex.clear();
         } else {
-            data = buffer;
+            dex = ByteBuffer.allocateDirect(buffer.remaining());
+            dex.put(buffer.duplicate());
+            dex.clear();
         }
+        data = dex.order(ByteOrder.LITTLE_ENDIAN);
         try {
             long[] args = new long[2];
             args[1] = includeAnnotations ? 1 : 0;
-            var out = (Object[]) DexParserBridge.openDex(buffer, args);
+            var out = (Object[]) DexParserBridge.openDex(data, args);
             cookie = args[0];
-            // out[0]: String[]
+            // out[0]: int[], offset and size of the string, type, proto, field and method id
+            //         sections, then of the class defs
             // out[1]: int[]
-            // out[2]: int[][]
-            // out[3]: int[]
-            // out[4]: int[]
-            // out[5]: int[]
-            // out[6]: Object[]
-            // out[7]: Object[]
-            var strings = (Object[]) out[0];
-            this.strings = new StringId[strings.length];
-            for (int i = 0; i < strings.length; ++i) {
-                this.strings[i] = new LSPosedStringId(i, strings[i]);
-            }
-
-            var typeIds = (int[]) out[1];
-            this.typeIds = new TypeId[typeIds.length];
-            for (int i = 0; i < typeIds.length; ++i) {
-                this.typeIds[i] = new LSPosedTypeId(i, typeIds[i]);
-            }
-
-            var protoIds = (int[][]) out[2];
-            this.protoIds = new ProtoId[protoIds.length];
-            for (int i = 0; i < protoIds.length; ++i) {
-                this.protoIds[i] = new LSPosedProtoId(i, protoIds[i]);
-            }
-
-            var fieldIds = (int[]) out[3];
-            this.fieldIds = new FieldId[fieldIds.length / 3];
-            for (int i = 0; i < this.fieldIds.length; ++i) {
-                this.fieldIds[i] = new LSPosedFieldId(i, fieldIds[3 * i], fieldIds[3 * i + 1], fieldIds[3 * i + 2]);
-            }
-
-            var methodIds = (int[]) out[4];
-            this.methodIds = new MethodId[methodIds.length / 3];
-            for (int i = 0; i < this.methodIds.length / 3; ++i) {
-                this.methodIds[i] = new LSPosedMethodId(i, methodIds[3 * i], methodIds[3 * i + 1], methodIds[3 * i + 2]);
-            }
-
-            if (out[5] != null && out[6] != null) {
-                var a = (int[]) out[5];
-                var b = (Object[]) out[6];
+            // out[2]: Object[]
+            // out[3]: Object[]
+            var sections = (int[]) out[0];
+            stringIdsOff = sections[0];
+            stringIdsSize = sections[1];
+            typeIdsOff = sections[2];
+            typeIdsSize = sections[3];
+            protoIdsOff = sections[4];
+            protoIdsSize = sections[5];
+            fieldIdsOff = sections[6];
+            fieldIdsSize = sections[7];
+            methodIdsOff = sections[8];
+            methodIdsSize = sections[9];
+            classDefsSize = sections[11];
+
+            if (out[1] != null && out[2] != null) {
+                var a = (int[]) out[1];
+                var b = (Object[]) out[2];
                 this.annotations = new Annotation[a.length / 2];
                 for (int i = 0; i < this.annotations.length; ++i) {
                     this.annotations[i] = new LSPosedAnnotation(a[2 * i], a[2 * i + 1], (int[]) b[2 * i], (Object[]) b[2 * i + 1]);
@@ -90,8 +131,8 @@ public class LSPosedDexParser implements DexParser {
             } else {
                 this.annotations = new Annotation[0];
             }
-            if (out[7] != null) {
-                var b = (Object[]) out[7];
+            if (out[3] != null) {
+                var b = (Object[]) out[3];
                 this.arrays = new Array[b.length / 2];
                 for (int i = 0; i < this.arrays.length; ++i) {
                     this.arrays[i] = new LSPosedArray((int[]) b[2 * i], (Object[]) b[2 * i + 1]);
@@ -100,18 +141,59 @@ public class LSPosedDexParser implements DexParser {
                 this.arrays = new Array[0];
             }
         } catch (Throwable e) {
+            close();
             throw new IOException("Invalid dex file", e);
         }
     }
 
     @Override
-    synchronized public void close() {
-        if (cookie != 0) {
-            DexParserBridge.closeDex(cookie);
-            cookie = 0;
+    public void close() {
+        if (lock.getReadHoldCount() > 0 || visitThreads.contains(Thread.currentThread())) {
+            // the write lock would wait for the visit, which in turn waits for this callback
+            throw new IllegalStateException("Closed during a visit");
+        }
+        lock.writeLock().lock();
+        try {
+            if (cookie != 0) {
+                DexParserBridge.closeDex(cookie);
+                cookie = 0;
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
+    private int readUnsignedShort(int offset) {
+        return data.getShort(offset) & 0xffff;
+    }
+
+    /**
+     * Decodes the MUTF-8 string_data_item at {@code offset}.
+     */
+    private String readString(int offset) {
+        int utf16Size = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = data.get(offset++);
+            utf16Size |= (b & 0x7f) << shift;
+            if (b >= 0) break;
+        }
+        var chars = new char[utf16Size];
+        for (int i = 0; i < utf16Size; ++i) {
+            int a = data.get(offset++) & 0xff;
+            if (a < 0x80) {
+                chars[i] = (char) a;
+            } else if ((a & 0xe0) == 0xc0) {
+                int b = data.get(offset++) & 0x3f;
+                chars[i] = (char) (((a & 0x1f) << 6) | b);
+            } else {
+                int b = data.get(offset++) & 0x3f;
+                int c = data.get(offset++) & 0x3f;
+                chars[i] = (char) (((a & 0x0f) << 12) | (b << 6) | c);
+            }
+        }
+        return new String(chars);
+    }
+
     static class LSPosedId<Self extends Id<Self>> implements Id<Self> {
         final int id;
 
@@ -130,144 +212,112 @@ public class LSPosedDexParser implements DexParser {
         }
     }
 
-    static class LSPosedStringId extends LSPosedId<StringId> implements StringId {
-        @NonNull
-        final String string;
+    class LSPosedStringId extends LSPosedId<StringId> implements StringId {
+        private volatile String string;
 
-        LSPosedStringId(int id, @NonNull Object string) {
+        LSPosedStringId(int id) {
             super(id);
-            this.string = (String) string;
         }
 
         @NonNull
         @Override
         public String getString() {
-            return string;
+            var s = string;
+            if (s == null) {
+                string = s = readString(data.getInt(stringIdsOff + 4 * id));
+            }
+            return s;
         }
     }
 
     class LSPosedTypeId extends LSPosedId<TypeId> implements TypeId {
-        @NonNull
-        final StringId descriptor;
-
-        LSPosedTypeId(int id, int descriptor) {
+        LSPosedTypeId(int id) {
             super(id);
-            this.descriptor = strings[descriptor];
         }
 
         @NonNull
         @Override
         public StringId getDescriptor() {
-            return descriptor;
+            return getStringId()[data.getInt(typeIdsOff + 4 * id)];
         }
     }
 
     class LSPosedProtoId extends LSPosedId<ProtoId> implements ProtoId {
-        @NonNull
-        final StringId shorty;
-        @NonNull
-        final TypeId returnType;
-        @Nullable
-        final TypeId[] parameters;
-
-        LSPosedProtoId(int id, @NonNull int[] protoId) {
+        LSPosedProtoId(int id) {
             super(id);
-            this.shorty = strings[protoId[0]];
-            this.returnType = typeIds[protoId[1]];
-            if (protoId.length > 2) {
-                this.parameters = new TypeId[protoId.length - 2];
-                for (int i = 2; i < parameters.length; ++i) {
-                    this.parameters[i] = typeIds[protoId[i]];
-                }
-            } else {
-                this.parameters = null;
-            }
         }
 
         @NonNull
         @Override
         public StringId getShorty() {
-            return shorty;
+            return getStringId()[data.getInt(protoIdsOff + 12 * id)];
         }
 
         @NonNull
         @Override
         public TypeId getReturnType() {
-            return returnType;
+            return getTypeId()[data.getInt(protoIdsOff + 12 * id + 4)];
         }
 
         @Nullable
         @Override
         public TypeId[] getParameters() {
+            int parametersOff = data.getInt(protoIdsOff + 12 * id + 8);
+            if (parametersOff == 0) return null;
+            var typeIds = getTypeId();
+            var parameters = new TypeId[data.getInt(parametersOff)];
+            for (int i = 0; i < parameters.length; ++i) {
+                parameters[i] = typeIds[readUnsignedShort(parametersOff + 4 + 2 * i)];
+            }
             return parameters;
         }
     }
 
     class LSPosedFieldId extends LSPosedId<FieldId> implements FieldId {
-        @NonNull
-        final TypeId type;
-        @NonNull
-        final TypeId declaringClass;
-        @NonNull
-        final StringId name;
-
-        LSPosedFieldId(int id, int type, int declaringClass, int name) {
+        LSPosedFieldId(int id) {
             super(id);
-            this.type = typeIds[type];
-            this.declaringClass = typeIds[declaringClass];
-            this.name = strings[name];
         }
 
         @NonNull
         @Override
         public TypeId getType() {
-            return type;
+            return getTypeId()[readUnsignedShort(fieldIdsOff + 8 * id + 2)];
         }
 
         @NonNull
         @Override
         public TypeId getDeclaringClass() {
-            return declaringClass;
+            return getTypeId()[readUnsignedShort(fieldIdsOff + 8 * id)];
         }
 
         @NonNull
         @Override
         public StringId getName() {
-            return name;
+            return getStringId()[data.getInt(fieldIdsOff + 8 * id + 4)];
         }
     }
 
     class LSPosedMethodId extends LSPosedId<MethodId> implements MethodId {
-        @NonNull
-        final TypeId declaringClass;
-        @NonNull
-        final ProtoId prototype;
-        @NonNull
-        final StringId name;
-
-        LSPosedMethodId(int id, int declaringClass, int prototype, int name) {
+        LSPosedMethodId(int id) {
             super(id);
-            this.declaringClass = typeIds[declaringClass];
-            this.prototype = protoIds[prototype];
-            this.name = strings[name];
         }
 
         @NonNull
         @Override
         public TypeId getDeclaringClass() {
-            return declaringClass;
+            return getTypeId()[readUnsignedShort(methodIdsOff + 8 * id)];
         }
 
         @NonNull
         @Override
         public ProtoId getPrototype() {
-            return prototype;
+            return getProtoId()[readUnsignedShort(methodIdsOff + 8 * id + 2)];
         }
 
         @NonNull
         @Override
         public StringId getName() {
-            return name;
+            return getStringId()[data.getInt(methodIdsOff + 8 * id + 4)];
         }
     }
 
@@ -291,14 +341,13 @@ public class LSPosedDexParser implements DexParser {
 
     class LSPosedAnnotation implements Annotation {
         int visibility;
-        @NonNull
-        final TypeId type;
+        final int type;
         @NonNull
         final Element[] elements;
 
         LSPosedAnnotation(int visibility, int type, @NonNull int[] elements, @NonNull Object[] elementValues) {
             this.visibility = visibility;
-            this.type = typeIds[type];
+            this.type = type;
             this.elements = new Element[elementValues.length];
             for (int i = 0; i < elementValues.length; ++i) {
                 this.elements[i] = new LSPosedElement(elements[i * 2], elements[i * 2 + 1], (ByteBuffer) elementValues[i]);
@@ -313,7 +362,7 @@ public class LSPosedDexParser implements DexParser {
         @NonNull
         @Override
         public TypeId getType() {
-            return type;
+            return getTypeId()[type];
         }
 
         @NonNull
@@ -351,49 +400,98 @@ public class LSPosedDexParser implements DexParser {
     }
 
     class LSPosedElement extends LSPosedValue implements Element {
-        @NonNull
-        final StringId name;
+        final int name;
 
         LSPosedElement(int name, int valueType, @Nullable ByteBuffer value) {
             super(valueType, value);
-            this.name = strings[name];
+            this.name = name;
         }
 
         @NonNull
         @Override
         public StringId getName() {
-            return name;
+            return getStringId()[name];
         }
     }
 
     @NonNull
     @Override
     public StringId[] getStringId() {
-        return strings;
+        var ids = strings;
+        if (ids == null) {
+            synchronized (this) {
+                if ((ids = strings) == null) {
+                    ids = new StringId[stringIdsSize];
+                    for (int i = 0; i < ids.length; ++i) ids[i] = new LSPosedStringId(i);
+                    strings = ids;
+                }
+            }
+        }
+        return ids;
     }
 
     @NonNull
     @Override
     public TypeId[] getTypeId() {
-        return typeIds;
+        var ids = typeIds;
+        if (ids == null) {
+            synchronized (this) {
+                if ((ids = typeIds) == null) {
+                    ids = new TypeId[typeIdsSize];
+                    for (int i = 0; i < ids.length; ++i) ids[i] = new LSPosedTypeId(i);
+                    typeIds = ids;
+                }
+            }
+        }
+        return ids;
     }
 
     @NonNull
     @Override
     public FieldId[] getFieldId() {
-        return fieldIds;
+        var ids = fieldIds;
+        if (ids == null) {
+            synchronized (this) {
+                if ((ids = fieldIds) == null) {
+                    ids = new FieldId[fieldIdsSize];
+                    for (int i = 0; i < ids.length; ++i) ids[i] = new LSPosedFieldId(i);
+                    fieldIds = ids;
+                }
+            }
+        }
+        return ids;
     }
 
     @NonNull
     @Override
     public MethodId[] getMethodId() {
-        return methodIds;
+        var ids = methodIds;
+        if (ids == null) {
+            synchronized (this) {
+                if ((ids = methodIds) == null) {
+                    ids = new MethodId[methodIdsSize];
+                    for (int i = 0; i < ids.length; ++i) ids[i] = new LSPosedMethodId(i);
+                    methodIds = ids;
+                }
+            }
+        }
+        return ids;
     }
 
     @NonNull
     @Override
     public ProtoId[] getProtoId() {
-        return protoIds;
+        var ids = protoIds;
+        if (ids == null) {
+            synchronized (this) {
+                if ((ids = protoIds) == null) {
+                    ids = new ProtoId[protoIdsSize];
+                    for (int i = 0; i < ids.length; ++i) ids[i] = new LSPosedProtoId(i);
+                    protoIds = ids;
+                }
+            }
+        }
+        return ids;
     }
 
     @NonNull
@@ -408,17 +506,146 @@ public class LSPosedDexParser implements DexParser {
         return arrays;
     }
 
-    @Override
-    synchronized public void visitDefinedClasses(@NonNull ClassVisitor visitor) {
-        if (cookie == 0) {
-            throw new IllegalStateException("Closed");
+    /**
+     * @return the ids of the methods loading the string, sorted
+     */
+    @NonNull
+    public int[] getMethodsReferringString(int stringId) {
+        return findMethods(0, stringId);
+    }
+
+    /**
+     * @return the ids of the methods invoking the method, sorted
+     */
+    @NonNull
+    public int[] getMethodsInvoking(int methodId) {
+        return findMethods(1, methodId);
+    }
+
+    /**
+     * @return the ids of the methods reading the field, sorted
+     */
+    @NonNull
+    public int[] getMethodsAccessing(int fieldId) {
+        return findMethods(2, fieldId);
+    }
+
+    /**
+     * @return the ids of the methods writing the field, sorted
+     */
+    @NonNull
+    public int[] getMethodsAssigning(int fieldId) {
+        return findMethods(3, fieldId);
+    }
+
+    // The first lookup indexes the code of every defined method, later ones are a table lookup
+    private int[] findMethods(int kind, int id) {
+        lock.readLock().lock();
+        try {
+            if (cookie == 0) {
+                throw new IllegalStateException("Closed");
+            }
+            return DexParserBridge.findMethods(cookie, kind, id);
+        } finally {
+            lock.readLock().unlock();
         }
-        var classVisitMethod = ClassVisitor.class.getDeclaredMethods()[0];
-        var fieldVisitMethod = FieldVisitor.class.getDeclaredMethods()[0];
-        var methodVisitMethod = MethodVisitor.class.getDeclaredMethods()[0];
-        var methodBodyVisitMethod = MethodBodyVisitor.class.getDeclaredMethods()[0];
-        var stopMethod = EarlyStopVisitor.class.getDeclaredMethods()[0];
+    }
 
-        DexParserBridge.visitClass(cookie, visitor, FieldVisitor.class, MethodVisitor.class, classVisitMethod, fieldVisitMethod, methodVisitMethod, methodBodyVisitMethod, stopMethod);
+    @Override
+    public void visitDefinedClasses(@NonNull ClassVisitor visitor) {
+        visitDefinedClasses(visitor, null, null, VISIT_ALL, 1);
+    }
+
+    /**
+     * Visits the defined classes, skipping the ones rejected by the filters before any of their
+     * data is copied out of the native parser.
+     *
+     * @param classPrefix     only visit classes whose descriptor starts with it, e.g. {@code "Lcom/foo/"}
+     * @param referredStrings only visit classes with a method loading one of these string ids
+     * @param bodyData        the {@code VISIT_*} data method body visitors receive, the others
+     *                        are passed as empty arrays
+     * @param parallelism     the number of threads visiting, the visitor must be thread safe
+     *                        if greater than 1. Classes are then visited in no particular order
+     *                        and a few more may be visited after {@link EarlyStopVisitor#stop()}
+     *                        returned {@code true}.
+     * @throws IllegalStateException if the parser is closed, also if a visitor closes it from
+     *                               a callback, which has to wait until the visit returned
+     */
+    public void visitDefinedClasses(@NonNull ClassVisitor visitor, @Nullable String classPrefix,
+                                    @Nullable int[] referredStrings, int bodyData, int parallelism) {
+        lock.readLock().lock();
+        try {
+            if (cookie == 0) {
+                throw new IllegalStateException("Closed");
+            }
+            var classVisitMethod = ClassVisitor.class.getDeclaredMethods()[0];
+            var fieldVisitMethod = FieldVisitor.class.getDeclaredMethods()[0];
+            var methodVisitMethod = MethodVisitor.class.getDeclaredMethods()[0];
+            var methodBodyVisitMethod = MethodBodyVisitor.class.getDeclaredMethods()[0];
+            var stopMethod = EarlyStopVisitor.class.getDeclaredMethods()[0];
+
+            int workers = Math.min(parallelism, (classDefsSize + VISIT_CHUNK - 1) / VISIT_CHUNK);
+            if (workers <= 1) {
+                DexParserBridge.visitClass(cookie, visitor, FieldVisitor.class, MethodVisitor.class, classVisitMethod, fieldVisitMethod, methodVisitMethod, methodBodyVisitMethod, stopMethod, 0, classDefsSize, classPrefix, referredStrings, bodyData);
+                return;
+            }
+
+            var next = new AtomicInteger();
+            var stopped = new AtomicBoolean();
+            Runnable worker = () -> {
+                for (int begin; !stopped.get() && (begin = next.getAndAdd(VISIT_CHUNK)) < classDefsSize; ) {
+                    DexParserBridge.visitClass(cookie, visitor, FieldVisitor.class, MethodVisitor.class, classVisitMethod, fieldVisitMethod, methodVisitMethod, methodBodyVisitMethod, stopMethod, begin, begin + VISIT_CHUNK, classPrefix, referredStrings, bodyData);
+                    if (visitor.stop()) stopped.set(true);
+                }
+            };
+            var futures = new ArrayList<Future<?>>(workers - 1);
+            for (int i = 1; i < workers; i++) {
+                futures.add(visitExecutor.submit(() -> {
+                    var thread = Thread.currentThread();
+                    visitThreads.add(thread);
+                    try {
+                        worker.run();
+                    } finally {
+                        visitThreads.remove(thread);
+                    }
+                }));
+            }
+            Throwable failure = null;
+            try {
+                // the caller takes part, so the visit completes even if the pool is busy
+                worker.run();
+            } catch (Throwable e) {
+                stopped.set(true);
+                failure = e;
+            }
+            // every chunk is taken once the caller is done, tasks still queued have nothing left
+            // to visit. Drop them instead of waiting for a pool thread, which may itself be
+            // waiting here if a visitor started a parallel visit
+            for (var future : futures) future.cancel(false);
+            // workers use the native parser, so they must be done before the lock is released
+            boolean interrupted = false;
+            for (var future : futures) {
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (CancellationException e) {
+                        break;
+                    } catch (ExecutionException e) {
+                        stopped.set(true);
+                        if (failure == null) failure = e.getCause();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+            if (failure instanceof Error) throw (Error) failure;
+            if (failure != null) throw new IllegalStateException(failure);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 }
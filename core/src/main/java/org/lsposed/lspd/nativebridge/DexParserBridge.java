@@ -15,5 +15,8 @@ public class DexParserBridge {
     public static native void closeDex(long cookie);
 
     @FastNative
-    public static native void visitClass(long cookie, Object visitor, Class<DexParser.FieldVisitor> fieldVisitorClass, Class<DexParser.MethodVisitor> methodVisitorClass, Method classVisitMethod, Method fieldVisitMethod, Method methodVisitMethod, Method methodBodyVisitMethod, Method stopMethod);
+    public static native void visitClass(long cookie, Object visitor, Class<DexParser.FieldVisitor> fieldVisitorClass, Class<DexParser.MethodVisitor> methodVisitorClass, Method classVisitMethod, Method fieldVisitMethod, Method methodVisitMethod, Method methodBodyVisitMethod, Method stopMethod, int begin, int end, String classPrefix, int[] referredStrings, int bodyData);
+
+    // not @FastNative, the first call indexes the whole dex
+    public static native int[] findMethods(long cookie, int kind, int id);
 }
@@ -6,7 +6,7 @@ import java.lang.reflect.InvocationTargetException;
 import dalvik.annotation.optimization.FastNative;
 
 public class HookBridge {
-    public static native boolean hookMethod(boolean useModernApi, Executable hookMethod, Class<?> hooker, int priority, Object callback);
+    public static native boolean hookMethod(boolean useModernApi, Executable hookMethod, Class<?> hooker, int priority, Object callback, char[] shorty);
 
     public static native boolean unhookMethod(boolean useModernApi, Executable hookMethod, Object callback);
 
@@ -23,6 +23,4 @@ public class HookBridge {
 
     @FastNative
     public static native boolean setTrusted(Object cookie);
-
-    public static native Object[][] callbackSnapshot(Class<?> hooker_callback, Executable method);
 }
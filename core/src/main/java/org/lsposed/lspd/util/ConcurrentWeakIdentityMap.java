@@ -0,0 +1,161 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2026 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * A hash map with weakly referenced keys compared by identity.
+ *
+ * <p>Reads take no lock and allocate nothing, writes are serialized. Entries of collected keys
+ * are purged on the next write. As with {@link java.util.WeakHashMap}, a value that strongly
+ * references its own key keeps the entry alive.
+ */
+public final class ConcurrentWeakIdentityMap<K, V> {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final class Entry<K, V> extends WeakReference<K> {
+        final int hash;
+        volatile V value;
+        volatile Entry<K, V> next;
+
+        Entry(K key, int hash, V value, Entry<K, V> next, ReferenceQueue<? super K> queue) {
+            super(key, queue);
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    private final ReferenceQueue<K> queue = new ReferenceQueue<>();
+    private volatile AtomicReferenceArray<Entry<K, V>> table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    private int size;
+
+    public V get(K key) {
+        var tab = table;
+        int hash = System.identityHashCode(key);
+        for (var e = tab.get(hash & (tab.length() - 1)); e != null; e = e.next) {
+            if (e.hash == hash && e.get() == key) return e.value;
+        }
+        return null;
+    }
+
+    public synchronized V put(K key, V value) {
+        expungeStaleEntries();
+        var e = find(key);
+        if (e != null) {
+            var old = e.value;
+            e.value = value;
+            return old;
+        }
+        insert(key, value);
+        return null;
+    }
+
+    public synchronized V putIfAbsent(K key, V value) {
+        expungeStaleEntries();
+        var e = find(key);
+        if (e != null) return e.value;
+        insert(key, value);
+        return null;
+    }
+
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        var value = get(key);
+        if (value != null) return value;
+        value = mappingFunction.apply(key);
+        if (value == null) return null;
+        var existing = putIfAbsent(key, value);
+        return existing != null ? existing : value;
+    }
+
+    public synchronized V remove(K key) {
+        expungeStaleEntries();
+        var e = find(key);
+        if (e == null) return null;
+        unlink(e);
+        return e.value;
+    }
+
+    private Entry<K, V> find(K key) {
+        var tab = table;
+        int hash = System.identityHashCode(key);
+        for (var e = tab.get(hash & (tab.length() - 1)); e != null; e = e.next) {
+            if (e.hash == hash && e.get() == key) return e;
+        }
+        return null;
+    }
+
+    private void insert(K key, V value) {
+        var tab = table;
+        if (size >= tab.length() * 3 / 4) {
+            tab = resize(tab);
+        }
+        int i = System.identityHashCode(key) & (tab.length() - 1);
+        tab.set(i, new Entry<>(key, System.identityHashCode(key), value, tab.get(i), queue));
+        size++;
+    }
+
+    // Readers may still be walking the old chains, so live entries are copied rather than relinked
+    private AtomicReferenceArray<Entry<K, V>> resize(AtomicReferenceArray<Entry<K, V>> tab) {
+        var newTab = new AtomicReferenceArray<Entry<K, V>>(tab.length() * 2);
+        int newSize = 0;
+        for (int j = 0; j < tab.length(); j++) {
+            for (var e = tab.get(j); e != null; e = e.next) {
+                var key = e.get();
+                if (key == null) continue;
+                int i = e.hash & (newTab.length() - 1);
+                newTab.set(i, new Entry<>(key, e.hash, e.value, newTab.get(i), queue));
+                newSize++;
+            }
+        }
+        size = newSize;
+        table = newTab;
+        return newTab;
+    }
+
+    private void unlink(Entry<K, V> entry) {
+        var tab = table;
+        int i = entry.hash & (tab.length() - 1);
+        Entry<K, V> prev = null;
+        for (var e = tab.get(i); e != null; prev = e, e = e.next) {
+            if (e != entry) continue;
+            if (prev == null) {
+                tab.set(i, e.next);
+            } else {
+                prev.next = e.next;
+            }
+            size--;
+            return;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void expungeStaleEntries() {
+        for (Reference<? extends K> ref; (ref = queue.poll()) != null; ) {
+            // entries superseded by a resize are no longer in the table and are skipped by unlink
+            unlink((Entry<K, V>) ref);
+        }
+    }
+}
@@ -21,8 +21,12 @@
 #include "native_util.h"
 #include "slicer/reader.h"
 
+#include <algorithm>
 #include <list>
+#include <mutex>
+#include <numeric>
 #include <set>
+#include <string_view>
 #include <parallel_hashmap/phmap.h>
 
 namespace {
@@ -54,7 +58,6 @@ namespace {
         };
 
         struct MethodBody {
-            bool loaded;
             std::vector<jint> referred_strings;
             std::vector<jint> accessed_fields;
             std::vector<jint> assigned_fields;
@@ -67,7 +70,23 @@ namespace {
         phmap::flat_hash_map<jint, std::vector<jint>> method_annotations;
         phmap::flat_hash_map<jint, std::vector<jint>> parameter_annotations;
 
-        phmap::flat_hash_map<jint, MethodBody> method_bodies;
+        // The Java side wraps the values in direct buffers, so they live as long as the parser
+        AnnotationList annotation_list;
+        ArrayList array_list;
+
+        // Methods whose code refers to an id: those of id i are
+        // methods[offsets[i]] to methods[offsets[i + 1]], sorted
+        struct Index {
+            std::vector<jint> offsets;
+            std::vector<jint> methods;
+        };
+
+        // Built by the first query, in one pass over all code
+        std::once_flag index_once;
+        Index string_index;
+        Index invoke_index;
+        Index access_index;
+        Index assign_index;
     };
 
     template<class T>
@@ -210,6 +229,195 @@ namespace {
     }
 }
 
+namespace {
+    // Which parts of a method body the visitor receives, see LSPosedDexParser.VISIT_*
+    constexpr jint kVisitReferredStrings = 1 << 0;
+    constexpr jint kVisitInvokedMethods = 1 << 1;
+    constexpr jint kVisitAccessedFields = 1 << 2;
+    constexpr jint kVisitAssignedFields = 1 << 3;
+    constexpr jint kVisitOpcodes = 1 << 4;
+
+    constexpr dex::u1 kOpcodeMask = 0xff;
+    constexpr dex::u1 kOpcodeNoOp = 0x00;
+    constexpr dex::u1 kOpcodeConstString = 0x1a;
+    constexpr dex::u1 kOpcodeConstStringJumbo = 0x1b;
+    constexpr dex::u1 kOpcodeIGetStart = 0x52;
+    constexpr dex::u1 kOpcodeIGetEnd = 0x58;
+    constexpr dex::u1 kOpcodeSGetStart = 0x60;
+    constexpr dex::u1 kOpcodeSGetEnd = 0x66;
+    constexpr dex::u1 kOpcodeIPutStart = 0x59;
+    constexpr dex::u1 kOpcodeIPutEnd = 0x5f;
+    constexpr dex::u1 kOpcodeSPutStart = 0x67;
+    constexpr dex::u1 kOpcodeSPutEnd = 0x6d;
+    constexpr dex::u1 kOpcodeInvokeStart = 0x6e;
+    constexpr dex::u1 kOpcodeInvokeEnd = 0x72;
+    constexpr dex::u1 kOpcodeInvokeRangeStart = 0x74;
+    constexpr dex::u1 kOpcodeInvokeRangeEnd = 0x78;
+    constexpr dex::u2 kInstPackedSwitchPlayLoad = 0x0100;
+    constexpr dex::u2 kInstSparseSwitchPlayLoad = 0x0200;
+    constexpr dex::u2 kInstFillArrayDataPlayLoad = 0x0300;
+
+    // Calls f(inst, opcode) for every instruction, skipping switch and array payloads
+    template<class F>
+    void ForEachInstruction(const dex::Code *code, F &&f) {
+        const dex::u2 *inst = code->insns;
+        const dex::u2 *end = inst + code->insns_size;
+        while (inst < end) {
+            dex::u1 opcode = *inst & kOpcodeMask;
+            if (!f(inst, opcode)) return;
+            if (opcode == kOpcodeNoOp) {
+                if (*inst == kInstPackedSwitchPlayLoad) {
+                    inst += inst[1] * 2 + 3;
+                } else if (*inst == kInstSparseSwitchPlayLoad) {
+                    inst += inst[1] * 4 + 1;
+                } else if (*inst == kInstFillArrayDataPlayLoad) {
+                    inst += (*reinterpret_cast<const dex::u4 *>(&inst[2]) * inst[1] + 1) / 2 + 3;
+                }
+            }
+            inst += dex::opcode_len[opcode];
+        }
+    }
+
+    jint ReferredString(const dex::u2 *inst, dex::u1 opcode) {
+        if (opcode == kOpcodeConstString) return inst[1];
+        if (opcode == kOpcodeConstStringJumbo) {
+            return static_cast<jint>(*reinterpret_cast<const dex::u4 *>(&inst[1]));
+        }
+        return -1;
+    }
+
+    void CollectMethodBody(const dex::Code *code, jint flags, DexParser::MethodBody &body) {
+        std::set<jint> referred_strings;
+        std::set<jint> assigned_fields;
+        std::set<jint> accessed_fields;
+        std::set<jint> invoked_methods;
+        ForEachInstruction(code, [&](const dex::u2 *inst, dex::u1 opcode) {
+            if (flags & kVisitOpcodes) {
+                body.opcodes.push_back(static_cast<jbyte>(opcode));
+            }
+            if (flags & kVisitReferredStrings) {
+                if (auto str_idx = ReferredString(inst, opcode); str_idx >= 0) {
+                    referred_strings.emplace(str_idx);
+                }
+            }
+            if ((flags & kVisitAccessedFields) &&
+                ((opcode >= kOpcodeIGetStart && opcode <= kOpcodeIGetEnd) ||
+                 (opcode >= kOpcodeSGetStart && opcode <= kOpcodeSGetEnd))) {
+                accessed_fields.emplace(inst[1]);
+            }
+            if ((flags & kVisitAssignedFields) &&
+                ((opcode >= kOpcodeIPutStart && opcode <= kOpcodeIPutEnd) ||
+                 (opcode >= kOpcodeSPutStart && opcode <= kOpcodeSPutEnd))) {
+                assigned_fields.emplace(inst[1]);
+            }
+            if ((flags & kVisitInvokedMethods) &&
+                ((opcode >= kOpcodeInvokeStart && opcode <= kOpcodeInvokeEnd) ||
+                 (opcode >= kOpcodeInvokeRangeStart && opcode <= kOpcodeInvokeRangeEnd))) {
+                invoked_methods.emplace(inst[1]);
+            }
+            return true;
+        });
+        body.referred_strings.assign(referred_strings.begin(), referred_strings.end());
+        body.assigned_fields.assign(assigned_fields.begin(), assigned_fields.end());
+        body.accessed_fields.assign(accessed_fields.begin(), accessed_fields.end());
+        body.invoked_methods.assign(invoked_methods.begin(), invoked_methods.end());
+    }
+
+    // Whether any method of the class loads one of the sorted strings
+    bool ReferencesAnyString(const DexParser::ClassData &class_data,
+                             const std::vector<jint> &strings) {
+        bool found = false;
+        for (const auto &codes: {&class_data.direct_methods_code,
+                                 &class_data.virtual_methods_code}) {
+            for (const auto *code: *codes) {
+                if (code == nullptr) continue;
+                ForEachInstruction(code, [&](const dex::u2 *inst, dex::u1 opcode) {
+                    auto str_idx = ReferredString(inst, opcode);
+                    found = str_idx >= 0 &&
+                            std::binary_search(strings.begin(), strings.end(), str_idx);
+                    return !found;
+                });
+                if (found) return true;
+            }
+        }
+        return false;
+    }
+
+    bool HasDescriptorPrefix(DexParser &dex, dex::u4 type_idx, std::string_view prefix) {
+        auto descriptor_idx = dex.TypeIds()[type_idx].descriptor_idx;
+        const auto *ptr = dex.dataPtr<dex::u1>(dex.StringIds()[descriptor_idx].string_data_off);
+        dex::ReadULeb128(&ptr);
+        // dex strings and JNI share the same modified UTF-8 encoding and are NUL terminated
+        return std::string_view(reinterpret_cast<const char *>(ptr)).substr(0, prefix.size()) ==
+               prefix;
+    }
+
+    DexParser::Index MakeIndex(std::vector<std::pair<jint, jint>> &refs, size_t size) {
+        std::sort(refs.begin(), refs.end());
+        refs.erase(std::unique(refs.begin(), refs.end()), refs.end());
+        DexParser::Index index;
+        index.offsets.assign(size + 1, 0);
+        index.methods.reserve(refs.size());
+        for (auto &[id, method_idx]: refs) {
+            ++index.offsets[id + 1];
+            index.methods.push_back(method_idx);
+        }
+        std::partial_sum(index.offsets.begin(), index.offsets.end(), index.offsets.begin());
+        return index;
+    }
+
+    void BuildIndex(DexParser &dex) {
+        auto string_count = dex.StringIds().size();
+        auto method_count = dex.MethodIds().size();
+        auto field_count = dex.FieldIds().size();
+        std::vector<std::pair<jint, jint>> strings;
+        std::vector<std::pair<jint, jint>> invokes;
+        std::vector<std::pair<jint, jint>> accesses;
+        std::vector<std::pair<jint, jint>> assigns;
+        // ids beyond their section come from a malformed dex and are left out
+        auto add = [](auto &refs, size_t count, jint id, jint method_idx) {
+            if (id >= 0 && static_cast<size_t>(id) < count) refs.emplace_back(id, method_idx);
+        };
+        for (auto &class_data: dex.class_data) {
+            for (auto &[methods, methods_code]: {
+                    std::tie(class_data.direct_methods, class_data.direct_methods_code),
+                    std::tie(class_data.virtual_methods, class_data.virtual_methods_code)}) {
+                for (size_t j = 0; j < methods.size(); j++) {
+                    auto method_idx = methods[j];
+                    if (methods_code[j] == nullptr) continue;
+                    ForEachInstruction(methods_code[j], [&](const dex::u2 *inst, dex::u1 opcode) {
+                        if (auto str_idx = ReferredString(inst, opcode); str_idx >= 0) {
+                            add(strings, string_count, str_idx, method_idx);
+                        } else if ((opcode >= kOpcodeIGetStart && opcode <= kOpcodeIGetEnd) ||
+                                   (opcode >= kOpcodeSGetStart && opcode <= kOpcodeSGetEnd)) {
+                            add(accesses, field_count, inst[1], method_idx);
+                        } else if ((opcode >= kOpcodeIPutStart && opcode <= kOpcodeIPutEnd) ||
+                                   (opcode >= kOpcodeSPutStart && opcode <= kOpcodeSPutEnd)) {
+                            add(assigns, field_count, inst[1], method_idx);
+                        } else if ((opcode >= kOpcodeInvokeStart && opcode <= kOpcodeInvokeEnd) ||
+                                   (opcode >= kOpcodeInvokeRangeStart &&
+                                    opcode <= kOpcodeInvokeRangeEnd)) {
+                            add(invokes, method_count, inst[1], method_idx);
+                        }
+                        return true;
+                    });
+                }
+            }
+        }
+        dex.string_index = MakeIndex(strings, string_count);
+        dex.invoke_index = MakeIndex(invokes, method_count);
+        dex.access_index = MakeIndex(accesses, field_count);
+        dex.assign_index = MakeIndex(assigns, field_count);
+    }
+
+    const std::vector<jint> &FindAnnotations(
+            const phmap::flat_hash_map<jint, std::vector<jint>> &annotations, jint idx) {
+        static const std::vector<jint> empty;
+        auto it = annotations.find(idx);
+        return it == annotations.end() ? empty : it->second;
+    }
+}
+
 namespace lspd {
     LSP_DEF_NATIVE_METHOD(jobject, DexParserBridge, openDex, jobject data, jlongArray args) {
         auto dex_size = env->GetDirectBufferCapacity(data);
@@ -230,85 +438,32 @@ namespace lspd {
             return nullptr;
         }
         auto object_class = env->FindClass("java/lang/Object");
-        auto string_class = env->FindClass("java/lang/String");
-        auto int_array_class = env->FindClass("[I");
-        auto out = env->NewObjectArray(8, object_class, nullptr);
-        auto out0 = env->NewObjectArray(static_cast<jint>(dex.StringIds().size()),
-                                        string_class, nullptr);
-        auto strings = dex.StringIds();
-        for (size_t i = 0; i < strings.size(); ++i) {
-            const auto *ptr = dex.dataPtr<dex::u1>(strings[i].string_data_off);
-            [[maybe_unused]] size_t len = dex::ReadULeb128(&ptr);
-            auto str = env->NewStringUTF(reinterpret_cast<const char *>(ptr));
-            env->SetObjectArrayElement(out0, static_cast<jint>(i), str);
-            env->DeleteLocalRef(str);
-        }
+        auto out = env->NewObjectArray(4, object_class, nullptr);
+
+        // ids are read by the Java side straight from the dex buffer when they are first used
+        auto *base = reinterpret_cast<const dex::u1 *>(dex_data);
+        auto section = [base](const auto &ids, jint *dst) {
+            dst[0] = ids.size() == 0 ? 0 : static_cast<jint>(
+                    reinterpret_cast<const dex::u1 *>(&ids[0]) - base);
+            dst[1] = static_cast<jint>(ids.size());
+        };
+        jint sections[12];
+        section(dex.StringIds(), &sections[0]);
+        section(dex.TypeIds(), &sections[2]);
+        section(dex.ProtoIds(), &sections[4]);
+        section(dex.FieldIds(), &sections[6]);
+        section(dex.MethodIds(), &sections[8]);
+        section(dex.ClassDefs(), &sections[10]);
+        auto out0 = env->NewIntArray(12);
+        env->SetIntArrayRegion(out0, 0, 12, sections);
         env->SetObjectArrayElement(out, 0, out0);
         env->DeleteLocalRef(out0);
 
-        auto types = dex.TypeIds();
-        auto out1 = env->NewIntArray(static_cast<jint>(types.size()));
-        auto *out1_ptr = env->GetIntArrayElements(out1, nullptr);
-        for (size_t i = 0; i < types.size(); ++i) {
-            out1_ptr[i] = static_cast<jint>(types[i].descriptor_idx);
-        }
-        env->ReleaseIntArrayElements(out1, out1_ptr, 0);
-        env->SetObjectArrayElement(out, 1, out1);
-        env->DeleteLocalRef(out1);
-
-        auto protos = dex.ProtoIds();
-        auto out2 = env->NewObjectArray(static_cast<jint>(protos.size()),
-                                        int_array_class, nullptr);
-        auto empty_type_list = dex::TypeList{.size = 0, .list = {}};
-        for (size_t i = 0; i < protos.size(); ++i) {
-            auto &proto = protos[i];
-            const auto &params = proto.parameters_off ? *dex.dataPtr<dex::TypeList>(
-                    proto.parameters_off) : empty_type_list;
-
-            auto out2i = env->NewIntArray(static_cast<jint>(2 + params.size));
-            auto *out2i_ptr = env->GetIntArrayElements(out2i, nullptr);
-            out2i_ptr[0] = static_cast<jint>(proto.shorty_idx);
-            out2i_ptr[1] = static_cast<jint>(proto.return_type_idx);
-            for (size_t j = 0; j < params.size; ++j) {
-                out2i_ptr[2 + j] = static_cast<jint>(params.list[j].type_idx);
-            }
-            env->ReleaseIntArrayElements(out2i, out2i_ptr, 0);
-            env->SetObjectArrayElement(out2, static_cast<jint>(i), out2i);
-            env->DeleteLocalRef(out2i);
-        }
-        env->SetObjectArrayElement(out, 2, out2);
-        env->DeleteLocalRef(out2);
-
-        auto fields = dex.FieldIds();
-        auto out3 = env->NewIntArray(static_cast<jint>(3 * fields.size()));
-        auto *out3_ptr = env->GetIntArrayElements(out3, nullptr);
-        for (size_t i = 0; i < fields.size(); ++i) {
-            auto &field = fields[i];
-            out3_ptr[3 * i] = static_cast<jint>(field.class_idx);
-            out3_ptr[3 * i + 1] = static_cast<jint>(field.type_idx);
-            out3_ptr[3 * i + 2] = static_cast<jint>(field.name_idx);
-        }
-        env->ReleaseIntArrayElements(out3, out3_ptr, 0);
-        env->SetObjectArrayElement(out, 3, out3);
-        env->DeleteLocalRef(out3);
-
-        auto methods = dex.MethodIds();
-        auto out4 = env->NewIntArray(static_cast<jint>(3 * methods.size()));
-        auto *out4_ptr = env->GetIntArrayElements(out4, nullptr);
-        for (size_t i = 0; i < methods.size(); ++i) {
-            out4_ptr[3 * i] = static_cast<jint>(methods[i].class_idx);
-            out4_ptr[3 * i + 1] = static_cast<jint>(methods[i].proto_idx);
-            out4_ptr[3 * i + 2] = static_cast<jint>(methods[i].name_idx);
-        }
-        env->ReleaseIntArrayElements(out4, out4_ptr, 0);
-        env->SetObjectArrayElement(out, 4, out4);
-        env->DeleteLocalRef(out4);
-
         auto classes = dex.ClassDefs();
         dex.class_data.resize(classes.size());
 
-        AnnotationList annotation_list;
-        ArrayList array_list;
+        auto &annotation_list = dex.annotation_list;
+        auto &array_list = dex.array_list;
 
         for (size_t i = 0; i < classes.size(); ++i) {
             auto &class_def = classes[i];
@@ -449,70 +604,70 @@ namespace lspd {
 
         if (!include_annotations) return out;
 
-        auto out5 = env->NewIntArray(static_cast<jint>(2 * annotation_list.size()));
-        auto out6 = env->NewObjectArray(static_cast<jint>(2 * annotation_list.size()), object_class,
+        auto out1 = env->NewIntArray(static_cast<jint>(2 * annotation_list.size()));
+        auto out2 = env->NewObjectArray(static_cast<jint>(2 * annotation_list.size()), object_class,
                                         nullptr);
-        auto out5_ptr = env->GetIntArrayElements(out5, nullptr);
+        auto out1_ptr = env->GetIntArrayElements(out1, nullptr);
         size_t i = 0;
         for (auto &[visibility, type, items]: annotation_list) {
-            auto out6i0 = env->NewIntArray(static_cast<jint>(2 * items.size()));
-            auto out6i0_ptr = env->GetIntArrayElements(out6i0, nullptr);
-            auto out6i1 = env->NewObjectArray(static_cast<jint>(items.size()), object_class,
+            auto out2i0 = env->NewIntArray(static_cast<jint>(2 * items.size()));
+            auto out2i0_ptr = env->GetIntArrayElements(out2i0, nullptr);
+            auto out2i1 = env->NewObjectArray(static_cast<jint>(items.size()), object_class,
                                               nullptr);
             size_t j = 0;
             for (auto&[name, value]: items) {
                 auto &[value_type, value_data] = value;
                 auto java_value = value_data.empty() ? nullptr : env->NewDirectByteBuffer(
                         value_data.data(), value_data.size());
-                env->SetObjectArrayElement(out6i1, static_cast<jint>(j), java_value);
-                out6i0_ptr[2 * j] = name;
-                out6i0_ptr[2 * j + 1] = value_type;
+                env->SetObjectArrayElement(out2i1, static_cast<jint>(j), java_value);
+                out2i0_ptr[2 * j] = name;
+                out2i0_ptr[2 * j + 1] = value_type;
                 env->DeleteLocalRef(java_value);
                 ++j;
             }
-            env->ReleaseIntArrayElements(out6i0, out6i0_ptr, 0);
-            env->SetObjectArrayElement(out6, static_cast<jint>(2 * i), out6i0);
-            env->SetObjectArrayElement(out6, static_cast<jint>(2 * i + 1), out6i1);
-            out5_ptr[2 * i] = visibility;
-            out5_ptr[2 * i + 1] = type;
-            env->DeleteLocalRef(out6i0);
-            env->DeleteLocalRef(out6i1);
+            env->ReleaseIntArrayElements(out2i0, out2i0_ptr, 0);
+            env->SetObjectArrayElement(out2, static_cast<jint>(2 * i), out2i0);
+            env->SetObjectArrayElement(out2, static_cast<jint>(2 * i + 1), out2i1);
+            out1_ptr[2 * i] = visibility;
+            out1_ptr[2 * i + 1] = type;
+            env->DeleteLocalRef(out2i0);
+            env->DeleteLocalRef(out2i1);
             ++i;
         }
-        env->ReleaseIntArrayElements(out5, out5_ptr, 0);
-        env->SetObjectArrayElement(out, 5, out5);
-        env->SetObjectArrayElement(out, 6, out6);
-        env->DeleteLocalRef(out5);
-        env->DeleteLocalRef(out6);
+        env->ReleaseIntArrayElements(out1, out1_ptr, 0);
+        env->SetObjectArrayElement(out, 1, out1);
+        env->SetObjectArrayElement(out, 2, out2);
+        env->DeleteLocalRef(out1);
+        env->DeleteLocalRef(out2);
 
-        auto out7 = env->NewObjectArray(static_cast<jint>(2 * array_list.size()), object_class,
+        auto out3 = env->NewObjectArray(static_cast<jint>(2 * array_list.size()), object_class,
                                         nullptr);
         i = 0;
         for (auto &array: array_list) {
 
-            auto out7i0 = env->NewIntArray(static_cast<jint>(array.size()));
-            auto out7i0_ptr = env->GetIntArrayElements(out7i0, nullptr);
-            auto out7i1 = env->NewObjectArray(static_cast<jint>(array.size()), object_class,
+            auto out3i0 = env->NewIntArray(static_cast<jint>(array.size()));
+            auto out3i0_ptr = env->GetIntArrayElements(out3i0, nullptr);
+            auto out3i1 = env->NewObjectArray(static_cast<jint>(array.size()), object_class,
                                               nullptr);
             size_t j = 0;
             for (auto &value: array) {
                 auto &[value_type, value_data] = value;
                 auto java_value = value_data.empty() ? nullptr : env->NewDirectByteBuffer(
                         value_data.data(), value_data.size());
-                out7i0_ptr[j] = value_type;
-                env->SetObjectArrayElement(out7i1, static_cast<jint>(j), java_value);
+                out3i0_ptr[j] = value_type;
+                env->SetObjectArrayElement(out3i1, static_cast<jint>(j), java_value);
                 env->DeleteLocalRef(java_value);
                 ++j;
             }
-            env->ReleaseIntArrayElements(out7i0, out7i0_ptr, 0);
-            env->SetObjectArrayElement(out7, static_cast<jint>(2 * i), out7i0);
-            env->SetObjectArrayElement(out7, static_cast<jint>(2 * i + 1), out7i1);
-            env->DeleteLocalRef(out7i0);
-            env->DeleteLocalRef(out7i1);
+            env->ReleaseIntArrayElements(out3i0, out3i0_ptr, 0);
+            env->SetObjectArrayElement(out3, static_cast<jint>(2 * i), out3i0);
+            env->SetObjectArrayElement(out3, static_cast<jint>(2 * i + 1), out3i1);
+            env->DeleteLocalRef(out3i0);
+            env->DeleteLocalRef(out3i1);
             ++i;
         }
-        env->SetObjectArrayElement(out, 7, out7);
-        env->DeleteLocalRef(out7);
+        env->SetObjectArrayElement(out, 3, out3);
+        env->DeleteLocalRef(out3);
 
         return out;
     }
@@ -529,30 +684,15 @@ namespace lspd {
                           jobject field_visit_method,
                           jobject method_visit_method,
                           jobject method_body_visit_method,
-                          jobject stop_method) {
-        static constexpr dex::u1 kOpcodeMask = 0xff;
-        static constexpr dex::u1 kOpcodeNoOp = 0x00;
-        static constexpr dex::u1 kOpcodeConstString = 0x1a;
-        static constexpr dex::u1 kOpcodeConstStringJumbo = 0x1b;
-        static constexpr dex::u1 kOpcodeIGetStart = 0x52;
-        static constexpr dex::u1 kOpcodeIGetEnd = 0x58;
-        static constexpr dex::u1 kOpcodeSGetStart = 0x60;
-        static constexpr dex::u1 kOpcodeSGetEnd = 0x66;
-        static constexpr dex::u1 kOpcodeIPutStart = 0x59;
-        static constexpr dex::u1 kOpcodeIPutEnd = 0x5f;
-        static constexpr dex::u1 kOpcodeSPutStart = 0x67;
-        static constexpr dex::u1 kOpcodeSPutEnd = 0x6d;
-        static constexpr dex::u1 kOpcodeInvokeStart = 0x6e;
-        static constexpr dex::u1 kOpcodeInvokeEnd = 0x72;
-        static constexpr dex::u1 kOpcodeInvokeRangeStart = 0x74;
-        static constexpr dex::u1 kOpcodeInvokeRangeEnd = 0x78;
-        static constexpr dex::u2 kInstPackedSwitchPlayLoad = 0x0100;
-        static constexpr dex::u2 kInstSparseSwitchPlayLoad = 0x0200;
-        static constexpr dex::u2 kInstFillArrayDataPlayLoad = 0x0300;
-
+                          jobject stop_method,
+                          jint begin, jint end,
+                          jstring class_prefix,
+                          jintArray referred_strings_filter,
+                          jint body_flags) {
         if (cookie == 0) {
             return;
         }
+        // Only reads the parser, so disjoint class ranges may be visited from several threads
         auto &dex = *reinterpret_cast<DexParser *>(cookie);
         auto *visit_class = env->FromReflectedMethod(class_visit_method);
         auto *visit_field = env->FromReflectedMethod(field_visit_method);
@@ -560,12 +700,32 @@ namespace lspd {
         auto *visit_method_body = env->FromReflectedMethod(method_body_visit_method);
         auto *stop = env->FromReflectedMethod(stop_method);
 
-        auto classes = dex.ClassDefs();
+        std::string prefix;
+        if (class_prefix) {
+            auto *chars = env->GetStringUTFChars(class_prefix, nullptr);
+            prefix = chars;
+            env->ReleaseStringUTFChars(class_prefix, chars);
+        }
+        std::vector<jint> string_filter;
+        if (referred_strings_filter) {
+            string_filter.resize(env->GetArrayLength(referred_strings_filter));
+            env->GetIntArrayRegion(referred_strings_filter, 0,
+                                   static_cast<jint>(string_filter.size()), string_filter.data());
+            std::sort(string_filter.begin(), string_filter.end());
+        }
 
+        auto classes = dex.ClassDefs();
+        end = std::min(end, static_cast<jint>(classes.size()));
 
-        for (size_t i = 0; i < classes.size(); ++i) {
+        for (size_t i = begin; i < static_cast<size_t>(end); ++i) {
             auto &class_def = classes[i];
             auto &class_data = dex.class_data[i];
+            if (!prefix.empty() && !HasDescriptorPrefix(dex, class_def.class_idx, prefix)) {
+                continue;
+            }
+            if (referred_strings_filter && !ReferencesAnyString(class_data, string_filter)) {
+                continue;
+            }
             auto interfaces = env->NewIntArray(
                     static_cast<jint>(class_data.interfaces.size()));
             env->SetIntArrayRegion(interfaces, 0,
@@ -649,14 +809,14 @@ namespace lspd {
             if (member_visitor && env->IsInstanceOf(member_visitor, field_visitor_class)) {
                 jboolean stopped = JNI_FALSE;
                 for (auto &[fields, fields_access_flags]: {
-                        std::make_tuple(class_data.static_fields,
-                                        class_data.static_fields_access_flags),
-                        std::make_tuple(class_data.instance_fields,
-                                        class_data.instance_fields_access_flags)}) {
+                        std::tie(class_data.static_fields,
+                                 class_data.static_fields_access_flags),
+                        std::tie(class_data.instance_fields,
+                                 class_data.instance_fields_access_flags)}) {
                     for (size_t j = 0; j < fields.size(); j++) {
                         auto field_idx = fields[j];
                         auto access_flags = fields_access_flags[j];
-                        auto &field_annotations = dex.field_annotations[field_idx];
+                        auto &field_annotations = FindAnnotations(dex.field_annotations, field_idx);
                         auto annotations = env->NewIntArray(
                                 static_cast<jint>(field_annotations.size()));
                         env->SetIntArrayRegion(annotations, 0,
@@ -674,23 +834,23 @@ namespace lspd {
             if (member_visitor && env->IsInstanceOf(member_visitor, method_visitor_class)) {
                 jboolean stopped = JNI_FALSE;
                 for (auto &[methods, methods_access_flags, methods_code]: {
-                        std::make_tuple(class_data.direct_methods,
-                                        class_data.direct_methods_access_flags,
-                                        class_data.direct_methods_code),
-                        std::make_tuple(class_data.virtual_methods,
-                                        class_data.virtual_methods_access_flags,
-                                        class_data.virtual_methods_code)}) {
+                        std::tie(class_data.direct_methods,
+                                 class_data.direct_methods_access_flags,
+                                 class_data.direct_methods_code),
+                        std::tie(class_data.virtual_methods,
+                                 class_data.virtual_methods_access_flags,
+                                 class_data.virtual_methods_code)}) {
                     for (size_t j = 0; j < methods.size(); j++) {
                         auto method_idx = methods[j];
                         auto access_flags = methods_access_flags[j];
                         auto code = methods_code[j];
-                        auto method_annotation = dex.method_annotations[method_idx];
+                        auto &method_annotation = FindAnnotations(dex.method_annotations, method_idx);
                         auto method_annotations = env->NewIntArray(
                                 static_cast<jint>(method_annotation.size()));
                         env->SetIntArrayRegion(method_annotations, 0,
                                                static_cast<jint>(method_annotation.size()),
                                                method_annotation.data());
-                        auto parameter_annotation = dex.parameter_annotations[method_idx];
+                        auto &parameter_annotation = FindAnnotations(dex.parameter_annotations, method_idx);
                         auto parameter_annotations = env->NewIntArray(
                                 static_cast<jint>(parameter_annotation.size()));
                         env->SetIntArrayRegion(parameter_annotations, 0,
@@ -704,70 +864,8 @@ namespace lspd {
                         env->DeleteLocalRef(method_annotations);
                         env->DeleteLocalRef(parameter_annotations);
                         if (body_visitor && code != nullptr) {
-                            auto body = dex.method_bodies[method_idx];
-                            if (!body.loaded) {
-                                std::set<jint> referred_strings;
-                                std::set<jint> assigned_fields;
-                                std::set<jint> accessed_fields;
-                                std::set<jint> invoked_methods;
-
-                                const dex::u2 *inst = code->insns;
-                                const dex::u2 *end = inst + code->insns_size;
-                                while (inst < end) {
-                                    dex::u1 opcode = *inst & kOpcodeMask;
-                                    body.opcodes.push_back(static_cast<jbyte>(opcode));
-                                    if (opcode == kOpcodeConstString) {
-                                        auto str_idx = inst[1];
-                                        referred_strings.emplace(str_idx);
-                                    }
-                                    if (opcode == kOpcodeConstStringJumbo) {
-                                        auto str_idx = *reinterpret_cast<const dex::u4 *>(&inst[1]);
-                                        referred_strings.emplace(static_cast<jint>(str_idx));
-                                    }
-                                    if ((opcode >= kOpcodeIGetStart && opcode <= kOpcodeIGetEnd) ||
-                                        (opcode >= kOpcodeSGetStart && opcode <= kOpcodeSGetEnd)) {
-                                        auto field_idx = inst[1];
-                                        accessed_fields.emplace(field_idx);
-                                    }
-                                    if ((opcode >= kOpcodeIPutStart && opcode <= kOpcodeIPutEnd) ||
-                                        (opcode >= kOpcodeSPutStart && opcode <= kOpcodeSPutEnd)) {
-                                        auto field_idx = inst[1];
-                                        assigned_fields.emplace(field_idx);
-                                    }
-                                    if ((opcode >= kOpcodeInvokeStart &&
-                                         opcode <= kOpcodeInvokeEnd) ||
-                                        (opcode >= kOpcodeInvokeRangeStart &&
-                                         opcode <= kOpcodeInvokeRangeEnd)) {
-                                        auto callee = inst[1];
-                                        invoked_methods.emplace(callee);
-                                    }
-                                    if (opcode == kOpcodeNoOp) {
-                                        if (*inst == kInstPackedSwitchPlayLoad) {
-                                            inst += inst[1] * 2 + 3;
-                                        } else if (*inst == kInstSparseSwitchPlayLoad) {
-                                            inst += inst[1] * 4 + 1;
-                                        } else if (*inst == kInstFillArrayDataPlayLoad) {
-                                            inst += (*reinterpret_cast<const dex::u4 *>(&inst[2]) *
-                                                     inst[1] + 1) /
-                                                    2 + 3;
-                                        }
-                                    }
-                                    inst += dex::opcode_len[opcode];
-                                }
-                                body.referred_strings.insert(body.referred_strings.end(),
-                                                             referred_strings.begin(),
-                                                             referred_strings.end());
-                                body.assigned_fields.insert(body.assigned_fields.end(),
-                                                            assigned_fields.begin(),
-                                                            assigned_fields.end());
-                                body.accessed_fields.insert(body.accessed_fields.end(),
-                                                            accessed_fields.begin(),
-                                                            accessed_fields.end());
-                                body.invoked_methods.insert(body.invoked_methods.end(),
-                                                            invoked_methods.begin(),
-                                                            invoked_methods.end());
-                                body.loaded = true;
-                            }
+                            DexParser::MethodBody body;
+                            CollectMethodBody(code, body_flags, body);
                             auto referred_strings = env->NewIntArray(
                                     static_cast<jint>(body.referred_strings.size()));
                             env->SetIntArrayRegion(referred_strings, 0,
@@ -797,23 +895,65 @@ namespace lspd {
                                                 referred_strings,
                                                 invoked_methods,
                                                 accessed_fields, assigned_fields, opcodes);
+                            env->DeleteLocalRef(referred_strings);
+                            env->DeleteLocalRef(invoked_methods);
+                            env->DeleteLocalRef(accessed_fields);
+                            env->DeleteLocalRef(assigned_fields);
+                            env->DeleteLocalRef(opcodes);
                         }
+                        if (body_visitor) env->DeleteLocalRef(body_visitor);
                         stopped = env->CallBooleanMethod(member_visitor, stop);
                         if (stopped == JNI_TRUE) break;
                     }
                     if (stopped == JNI_TRUE) break;
                 }
             }
+            if (member_visitor) env->DeleteLocalRef(member_visitor);
             if (env->CallBooleanMethod(visitor, stop) == JNI_TRUE) break;
         }
     }
 
+    LSP_DEF_NATIVE_METHOD(jintArray, DexParserBridge, findMethods, jlong cookie, jint kind,
+                          jint id) {
+        if (cookie == 0) {
+            return nullptr;
+        }
+        auto &dex = *reinterpret_cast<DexParser *>(cookie);
+        std::call_once(dex.index_once, BuildIndex, std::ref(dex));
+        const DexParser::Index *index;
+        switch (kind) {
+            case 0:
+                index = &dex.string_index;
+                break;
+            case 1:
+                index = &dex.invoke_index;
+                break;
+            case 2:
+                index = &dex.access_index;
+                break;
+            case 3:
+                index = &dex.assign_index;
+                break;
+            default:
+                return nullptr;
+        }
+        if (id < 0 || static_cast<size_t>(id) + 1 >= index->offsets.size()) {
+            return env->NewIntArray(0);
+        }
+        auto begin = index->offsets[id];
+        auto size = index->offsets[id + 1] - begin;
+        auto res = env->NewIntArray(size);
+        env->SetIntArrayRegion(res, 0, size, index->methods.data() + begin);
+        return res;
+    }
+
     static JNINativeMethod gMethods[] = {
             LSP_NATIVE_METHOD(DexParserBridge, openDex,
                               "(Ljava/nio/ByteBuffer;[J)Ljava/lang/Object;"),
             LSP_NATIVE_METHOD(DexParserBridge, closeDex, "(J)V"),
             LSP_NATIVE_METHOD(DexParserBridge, visitClass,
-                              "(JLjava/lang/Object;Ljava/lang/Class;Ljava/lang/Class;Ljava/lang/reflect/Method;Ljava/lang/reflect/Method;Ljava/lang/reflect/Method;Ljava/lang/reflect/Method;Ljava/lang/reflect/Method;)V"),
+                              "(JLjava/lang/Object;Ljava/lang/Class;Ljava/lang/Class;Ljava/lang/reflect/Method;Ljava/lang/reflect/Method;Ljava/lang/reflect/Method;Ljava/lang/reflect/Method;Ljava/lang/reflect/Method;IILjava/lang/String;[II)V"),
+            LSP_NATIVE_METHOD(DexParserBridge, findMethods, "(JII)[I"),
     };
 
 
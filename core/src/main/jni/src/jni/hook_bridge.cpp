@@ -20,23 +20,46 @@
 #include "hook_bridge.h"
 #include "native_util.h"
 #include "lsplant.hpp"
-#include <parallel_hashmap/phmap.h>
+#include <algorithm>
+#include <atomic>
 #include <memory>
-#include <shared_mutex>
 #include <mutex>
-#include <set>
+#include <vector>
 
 using namespace lsplant;
 
 namespace {
-struct ModuleCallback {
-    jmethodID before_method;
-    jmethodID after_method;
+jclass object_class = nullptr;
+jclass object_array_class = nullptr;
+jfieldID snapshot_field = nullptr;
+
+// How invokeSpecial passes the boxed arguments of an executable, see InvokePlan::Of
+struct InvokePlan {
+    std::vector<jchar> shorty;  // return type first, then the parameters
+    bool all_references = false;
+    bool all_primitives = false;
+
+    static InvokePlan Of(JNIEnv *env, jcharArray shorty) {
+        InvokePlan plan;
+        plan.shorty.resize(env->GetArrayLength(shorty));
+        env->GetCharArrayRegion(shorty, 0, (jsize) plan.shorty.size(), plan.shorty.data());
+        plan.all_references = std::all_of(plan.shorty.begin() + 1, plan.shorty.end(),
+                                          [](jchar c) { return c == 'L'; });
+        plan.all_primitives = std::none_of(plan.shorty.begin() + 1, plan.shorty.end(),
+                                           [](jchar c) { return c == 'L'; });
+        return plan;
+    }
 };
 
+// Sorted by descending priority; callbacks of equal priority keep their registration order
+using CallbackList = std::vector<std::pair<jint, jobject>>;
+
 struct HookItem {
-    std::multimap<jint, jobject, std::greater<>> legacy_callbacks;
-    std::multimap<jint, ModuleCallback, std::greater<>> modern_callbacks;
+    CallbackList legacy_callbacks;
+    CallbackList modern_callbacks;
+    jobject hooker = nullptr;
+    // Set before the backup, so readers that got the backup see it
+    InvokePlan invoke_plan;
 private:
     std::atomic<jobject> backup {nullptr};
     static_assert(decltype(backup)::is_always_lock_free);
@@ -56,24 +79,128 @@ public:
                                        std::memory_order_acq_rel, std::memory_order_relaxed);
         backup.notify_all();
     }
+    // Must be called with the monitor of backup held. The hooker reads the
+    // published snapshot with a single volatile load, so it is never mutated afterwards.
+    void PublishSnapshot(JNIEnv *env) {
+        auto modern = env->NewObjectArray((jsize) modern_callbacks.size(), object_class, nullptr);
+        auto legacy = env->NewObjectArray((jsize) legacy_callbacks.size(), object_class, nullptr);
+        for (jsize i = 0; auto &[_, callback]: modern_callbacks) {
+            env->SetObjectArrayElement(modern, i++, callback);
+        }
+        for (jsize i = 0; auto &[_, callback]: legacy_callbacks) {
+            env->SetObjectArrayElement(legacy, i++, callback);
+        }
+        auto snapshot = env->NewObjectArray(2, object_array_class, nullptr);
+        env->SetObjectArrayElement(snapshot, 0, modern);
+        env->SetObjectArrayElement(snapshot, 1, legacy);
+        env->SetObjectField(hooker, snapshot_field, snapshot);
+        env->DeleteLocalRef(modern);
+        env->DeleteLocalRef(legacy);
+        env->DeleteLocalRef(snapshot);
+    }
 };
 
-template <class K, class V, class Hash = phmap::priv::hash_default_hash<K>,
-        class Eq = phmap::priv::hash_default_eq<K>,
-        class Alloc = phmap::priv::Allocator<phmap::priv::Pair<const K, V>>, size_t N = 4>
-using SharedHashMap = phmap::parallel_flat_hash_map<K, V, Hash, Eq, Alloc, N, std::shared_mutex>;
+// Insert-only open addressing table. Readers (every invokeOriginalMethod) never lock: they
+// probe an immutable-sized table loaded with a single acquire. Writers are serialized and
+// publish the value before the key, and grow by copying into a new table. Hook items are never
+// removed, so retired tables are kept alive instead of tracking reader epochs.
+class HookRegistry {
+    struct Slot {
+        std::atomic<jmethodID> key{nullptr};
+        std::atomic<HookItem *> value{nullptr};
+    };
+
+    struct Table {
+        explicit Table(size_t capacity) : mask(capacity - 1), slots(capacity) {}
 
-SharedHashMap<jmethodID, std::unique_ptr<HookItem>> hooked_methods;
+        const size_t mask;
+        std::vector<Slot> slots;
+    };
+
+    static size_t Hash(jmethodID key) {
+        uint64_t h = reinterpret_cast<uintptr_t>(key);
+        h ^= h >> 33;
+        h *= 0xff51afd7ed558ccdULL;
+        h ^= h >> 33;
+        return static_cast<size_t>(h);
+    }
+
+    static HookItem *Find(const Table *table, jmethodID key) {
+        for (auto i = Hash(key) & table->mask;; i = (i + 1) & table->mask) {
+            auto &slot = table->slots[i];
+            auto k = slot.key.load(std::memory_order_acquire);
+            if (k == key) return slot.value.load(std::memory_order_relaxed);
+            if (k == nullptr) return nullptr;
+        }
+    }
+
+    static void Insert(Table *table, jmethodID key, HookItem *value) {
+        for (auto i = Hash(key) & table->mask;; i = (i + 1) & table->mask) {
+            auto &slot = table->slots[i];
+            if (slot.key.load(std::memory_order_relaxed) == nullptr) {
+                slot.value.store(value, std::memory_order_relaxed);
+                slot.key.store(key, std::memory_order_release);
+                return;
+            }
+        }
+    }
+
+    std::atomic<Table *> table_{nullptr};
+    std::mutex write_lock_;
+    size_t size_ = 0;
+    std::vector<std::unique_ptr<Table>> tables_;
+    std::vector<std::unique_ptr<HookItem>> items_;
+
+public:
+    HookRegistry() {
+        tables_.emplace_back(std::make_unique<Table>(64));
+        table_.store(tables_.back().get(), std::memory_order_release);
+    }
+
+    HookItem *Get(jmethodID key) const {
+        return Find(table_.load(std::memory_order_acquire), key);
+    }
+
+    // Returns the item of key, creating it if absent; created tells which one happened
+    HookItem *GetOrCreate(jmethodID key, bool &created) {
+        if (auto *item = Get(key)) {
+            created = false;
+            return item;
+        }
+        std::lock_guard lk(write_lock_);
+        auto *table = table_.load(std::memory_order_relaxed);
+        if (auto *item = Find(table, key)) {
+            created = false;
+            return item;
+        }
+        // keep the load factor below 1/2 so that probes stay short
+        if ((size_ + 1) * 2 > table->slots.size()) {
+            auto grown = std::make_unique<Table>(table->slots.size() * 2);
+            for (auto &slot: table->slots) {
+                if (auto k = slot.key.load(std::memory_order_relaxed)) {
+                    Insert(grown.get(), k, slot.value.load(std::memory_order_relaxed));
+                }
+            }
+            table = grown.get();
+            tables_.emplace_back(std::move(grown));
+            table_.store(table, std::memory_order_release);
+        }
+        auto *item = items_.emplace_back(std::make_unique<HookItem>()).get();
+        Insert(table, key, item);
+        ++size_;
+        created = true;
+        return item;
+    }
+};
+
+HookRegistry hooked_methods;
 
 jmethodID invoke = nullptr;
-jmethodID callback_ctor = nullptr;
-jfieldID before_method_field = nullptr;
-jfieldID after_method_field = nullptr;
 }
 
 namespace lspd {
 LSP_DEF_NATIVE_METHOD(jboolean, HookBridge, hookMethod, jboolean useModernApi, jobject hookMethod,
-                      jclass hooker, jint priority, jobject callback) {
+                      jclass hooker, jint priority, jobject callback, jcharArray shorty) {
     bool newHook = false;
 #ifndef NDEBUG
     struct finally {
@@ -91,75 +218,46 @@ LSP_DEF_NATIVE_METHOD(jboolean, HookBridge, hookMethod, jboolean useModernApi, j
     };
 #endif
     auto target = env->FromReflectedMethod(hookMethod);
-    HookItem * hook_item = nullptr;
-    hooked_methods.lazy_emplace_l(target, [&hook_item](auto &it) {
-        hook_item = it.second.get();
-    }, [&hook_item, &target, &newHook](const auto &ctor) {
-        auto ptr = std::make_unique<HookItem>();
-        hook_item = ptr.get();
-        ctor(target, std::move(ptr));
-        newHook = true;
-    });
+    auto *hook_item = hooked_methods.GetOrCreate(target, newHook);
     if (newHook) {
         auto init = env->GetMethodID(hooker, "<init>", "(Ljava/lang/reflect/Executable;)V");
         auto callback_method = env->ToReflectedMethod(hooker, env->GetMethodID(hooker, "callback",
                                                                                "([Ljava/lang/Object;)Ljava/lang/Object;"),
                                                       false);
         auto hooker_object = env->NewObject(hooker, init, hookMethod);
+        hook_item->hooker = env->NewGlobalRef(hooker_object);
+        hook_item->invoke_plan = InvokePlan::Of(env, shorty);
         hook_item->SetBackup(lsplant::Hook(env, hookMethod, hooker_object, callback_method));
         env->DeleteLocalRef(hooker_object);
     }
     jobject backup = hook_item->GetBackup();
     if (!backup) return JNI_FALSE;
     JNIMonitor monitor(env, backup);
-    if (useModernApi) {
-        if (before_method_field == nullptr) {
-            auto callback_class = JNI_GetObjectClass(env, callback);
-            callback_ctor = JNI_GetMethodID(env, callback_class, "<init>", "(Ljava/lang/reflect/Method;Ljava/lang/reflect/Method;)V");
-            before_method_field = JNI_GetFieldID(env, callback_class, "beforeInvocation", "Ljava/lang/reflect/Method;");
-            after_method_field = JNI_GetFieldID(env, callback_class, "afterInvocation", "Ljava/lang/reflect/Method;");
-        }
-        auto before_method = JNI_GetObjectField(env, callback, before_method_field);
-        auto after_method = JNI_GetObjectField(env, callback, after_method_field);
-        auto callback_type = ModuleCallback {
-                .before_method = env->FromReflectedMethod(before_method),
-                .after_method = env->FromReflectedMethod(after_method),
-        };
-        hook_item->modern_callbacks.emplace(priority, callback_type);
-    } else {
-        hook_item->legacy_callbacks.emplace(priority, env->NewGlobalRef(callback));
-    }
+    auto &callbacks = useModernApi ? hook_item->modern_callbacks : hook_item->legacy_callbacks;
+    // insert after all callbacks of the same or higher priority
+    auto pos = std::upper_bound(callbacks.begin(), callbacks.end(), priority,
+                                [](jint p, const auto &item) { return p > item.first; });
+    callbacks.emplace(pos, priority, env->NewGlobalRef(callback));
+    hook_item->PublishSnapshot(env);
     return JNI_TRUE;
 }
 
 LSP_DEF_NATIVE_METHOD(jboolean, HookBridge, unhookMethod, jboolean useModernApi, jobject hookMethod, jobject callback) {
     auto target = env->FromReflectedMethod(hookMethod);
-    HookItem * hook_item = nullptr;
-    hooked_methods.if_contains(target, [&hook_item](const auto &it) {
-        hook_item = it.second.get();
-    });
+    auto *hook_item = hooked_methods.Get(target);
     if (!hook_item) return JNI_FALSE;
     jobject backup = hook_item->GetBackup();
     if (!backup) return JNI_FALSE;
     JNIMonitor monitor(env, backup);
-    if (useModernApi) {
-        auto before_method = JNI_GetObjectField(env, callback, before_method_field);
-        auto before = env->FromReflectedMethod(before_method);
-        for (auto i = hook_item->modern_callbacks.begin(); i != hook_item->modern_callbacks.end(); ++i) {
-            if (before == i->second.before_method) {
-                hook_item->modern_callbacks.erase(i);
-                return JNI_TRUE;
-            }
-        }
-    } else {
-        for (auto i = hook_item->legacy_callbacks.begin(); i != hook_item->legacy_callbacks.end(); ++i) {
-            if (env->IsSameObject(i->second, callback)) {
-                hook_item->legacy_callbacks.erase(i);
-                return JNI_TRUE;
-            }
-        }
-    }
-    return JNI_FALSE;
+    auto &callbacks = useModernApi ? hook_item->modern_callbacks : hook_item->legacy_callbacks;
+    auto it = std::find_if(callbacks.begin(), callbacks.end(), [env, callback](const auto &item) {
+        return env->IsSameObject(item.second, callback);
+    });
+    if (it == callbacks.end()) return JNI_FALSE;
+    env->DeleteGlobalRef(it->second);
+    callbacks.erase(it);
+    hook_item->PublishSnapshot(env);
+    return JNI_TRUE;
 }
 
 LSP_DEF_NATIVE_METHOD(jboolean, HookBridge, deoptimizeMethod, jobject hookMethod,
@@ -170,10 +268,7 @@ LSP_DEF_NATIVE_METHOD(jboolean, HookBridge, deoptimizeMethod, jobject hookMethod
 LSP_DEF_NATIVE_METHOD(jobject, HookBridge, invokeOriginalMethod, jobject hookMethod,
                       jobject thiz, jobjectArray args) {
     auto target = env->FromReflectedMethod(hookMethod);
-    HookItem * hook_item = nullptr;
-    hooked_methods.if_contains(target, [&hook_item](const auto &it) {
-        hook_item = it.second.get();
-    });
+    auto *hook_item = hooked_methods.Get(target);
     return env->CallObjectMethod(hook_item ? hook_item->GetBackup() : hookMethod, invoke, thiz, args);
 }
 
@@ -201,7 +296,17 @@ LSP_DEF_NATIVE_METHOD(jobject, HookBridge, invokeSpecialMethod, jobject method,
     static auto* const set_boolean = env->GetStaticMethodID(env->FindClass("java/lang/Boolean"), "valueOf", "(Z)Ljava/lang/Boolean;");
 
     auto target = env->FromReflectedMethod(method);
-    auto param_len = env->GetArrayLength(shorty) - 1;
+    // hooked executables carry a plan made when they were hooked, others get one from the caller
+    InvokePlan local_plan;
+    const InvokePlan *plan;
+    if (auto *hook_item = hooked_methods.Get(target); hook_item && hook_item->GetBackup()) {
+        plan = &hook_item->invoke_plan;
+    } else {
+        local_plan = InvokePlan::Of(env, shorty);
+        plan = &local_plan;
+    }
+    auto &shorty_char = plan->shorty;
+    auto param_len = (jsize) shorty_char.size() - 1;
     if (env->GetArrayLength(args) != param_len) {
         env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"), "args.length != parameters.length");
         return nullptr;
@@ -211,42 +316,57 @@ LSP_DEF_NATIVE_METHOD(jobject, HookBridge, invokeSpecialMethod, jobject method,
         return nullptr;
     }
     std::vector<jvalue> a(param_len);
-    auto *const shorty_char = env->GetCharArrayElements(shorty, nullptr);
-    for (jint i = 0; i != param_len; ++i) {
-        jobject element;
-        switch(shorty_char[i + 1]) {
+    auto unbox = [&](jchar type, jobject element, jvalue &value) {
+        if (element == nullptr) {
+            env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"), "null for a primitive parameter");
+            return;
+        }
+        switch(type) {
             case 'I':
-                a[i].i = env->CallIntMethod(element = env->GetObjectArrayElement(args, i), get_int);
+                value.i = env->CallIntMethod(element, get_int);
                 break;
             case 'D':
-                a[i].d = env->CallDoubleMethod(element = env->GetObjectArrayElement(args, i), get_double);
+                value.d = env->CallDoubleMethod(element, get_double);
                 break;
             case 'J':
-                a[i].j = env->CallLongMethod(element = env->GetObjectArrayElement(args, i), get_long);
+                value.j = env->CallLongMethod(element, get_long);
                 break;
             case 'F':
-                a[i].f = env->CallFloatMethod(element = env->GetObjectArrayElement(args, i), get_float);
+                value.f = env->CallFloatMethod(element, get_float);
                 break;
             case 'S':
-                a[i].s = env->CallShortMethod(element = env->GetObjectArrayElement(args, i), get_short);
+                value.s = env->CallShortMethod(element, get_short);
                 break;
             case 'B':
-                a[i].b = env->CallByteMethod(element = env->GetObjectArrayElement(args, i), get_byte);
+                value.b = env->CallByteMethod(element, get_byte);
                 break;
             case 'C':
-                a[i].c = env->CallCharMethod(element = env->GetObjectArrayElement(args, i), get_char);
+                value.c = env->CallCharMethod(element, get_char);
                 break;
             case 'Z':
-                a[i].z = env->CallBooleanMethod(element = env->GetObjectArrayElement(args, i), get_boolean);
+                value.z = env->CallBooleanMethod(element, get_boolean);
                 break;
-            default:
-            case 'L':
+        }
+        env->DeleteLocalRef(element);
+    };
+    if (plan->all_references) {
+        for (jsize i = 0; i != param_len; ++i) {
+            a[i].l = env->GetObjectArrayElement(args, i);
+        }
+    } else if (plan->all_primitives) {
+        for (jsize i = 0; i != param_len; ++i) {
+            unbox(shorty_char[i + 1], env->GetObjectArrayElement(args, i), a[i]);
+            if (env->ExceptionCheck()) return nullptr;
+        }
+    } else {
+        for (jsize i = 0; i != param_len; ++i) {
+            if (shorty_char[i + 1] == 'L') {
                 a[i].l = env->GetObjectArrayElement(args, i);
-                element = nullptr;
-                break;
+                continue;
+            }
+            unbox(shorty_char[i + 1], env->GetObjectArrayElement(args, i), a[i]);
+            if (env->ExceptionCheck()) return nullptr;
         }
-        if (element) env->DeleteLocalRef(element);
-        if (env->ExceptionCheck()) return nullptr;
     }
     jobject value = nullptr;
     switch(shorty_char[0]) {
@@ -282,7 +402,6 @@ LSP_DEF_NATIVE_METHOD(jobject, HookBridge, invokeSpecialMethod, jobject method,
             env->CallNonvirtualVoidMethodA(thiz, cls, target, a.data());
             break;
     }
-    env->ReleaseCharArrayElements(shorty, shorty_char, JNI_ABORT);
     return value;
 }
 
@@ -294,36 +413,8 @@ LSP_DEF_NATIVE_METHOD(jboolean, HookBridge, setTrusted, jobject cookie) {
     return lsplant::MakeDexFileTrusted(env, cookie);
 }
 
-LSP_DEF_NATIVE_METHOD(jobjectArray, HookBridge, callbackSnapshot, jclass callback_class, jobject method) {
-    auto target = env->FromReflectedMethod(method);
-    HookItem *hook_item = nullptr;
-    hooked_methods.if_contains(target, [&hook_item](const auto &it) {
-        hook_item = it.second.get();
-    });
-    if (!hook_item) return nullptr;
-    jobject backup = hook_item->GetBackup();
-    if (!backup) return nullptr;
-    JNIMonitor monitor(env, backup);
-
-    auto res = env->NewObjectArray(2, env->FindClass("[Ljava/lang/Object;"), nullptr);
-    auto modern = env->NewObjectArray((jsize) hook_item->modern_callbacks.size(), env->FindClass("java/lang/Object"), nullptr);
-    auto legacy = env->NewObjectArray((jsize) hook_item->legacy_callbacks.size(), env->FindClass("java/lang/Object"), nullptr);
-    for (jsize i = 0; auto callback: hook_item->modern_callbacks) {
-        auto before_method = JNI_ToReflectedMethod(env, clazz, callback.second.before_method, JNI_TRUE);
-        auto after_method = JNI_ToReflectedMethod(env, clazz, callback.second.after_method, JNI_TRUE);
-        auto callback_object = JNI_NewObject(env, callback_class, callback_ctor, before_method, after_method);
-        env->SetObjectArrayElement(modern, i++, env->NewLocalRef(callback_object));
-    }
-    for (jsize i = 0; auto callback: hook_item->legacy_callbacks) {
-        env->SetObjectArrayElement(legacy, i++, env->NewLocalRef(callback.second));
-    }
-    env->SetObjectArrayElement(res, 0, modern);
-    env->SetObjectArrayElement(res, 1, legacy);
-    return res;
-}
-
 static JNINativeMethod gMethods[] = {
-    LSP_NATIVE_METHOD(HookBridge, hookMethod, "(ZLjava/lang/reflect/Executable;Ljava/lang/Class;ILjava/lang/Object;)Z"),
+    LSP_NATIVE_METHOD(HookBridge, hookMethod, "(ZLjava/lang/reflect/Executable;Ljava/lang/Class;ILjava/lang/Object;[C)Z"),
     LSP_NATIVE_METHOD(HookBridge, unhookMethod, "(ZLjava/lang/reflect/Executable;Ljava/lang/Object;)Z"),
     LSP_NATIVE_METHOD(HookBridge, deoptimizeMethod, "(Ljava/lang/reflect/Executable;)Z"),
     LSP_NATIVE_METHOD(HookBridge, invokeOriginalMethod, "(Ljava/lang/reflect/Executable;Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;"),
@@ -331,7 +422,6 @@ static JNINativeMethod gMethods[] = {
     LSP_NATIVE_METHOD(HookBridge, allocateObject, "(Ljava/lang/Class;)Ljava/lang/Object;"),
     LSP_NATIVE_METHOD(HookBridge, instanceOf, "(Ljava/lang/Object;Ljava/lang/Class;)Z"),
     LSP_NATIVE_METHOD(HookBridge, setTrusted, "(Ljava/lang/Object;)Z"),
-    LSP_NATIVE_METHOD(HookBridge, callbackSnapshot, "(Ljava/lang/Class;Ljava/lang/reflect/Executable;)[[Ljava/lang/Object;"),
 };
 
 void RegisterHookBridge(JNIEnv *env) {
@@ -340,6 +430,25 @@ void RegisterHookBridge(JNIEnv *env) {
             method, "invoke",
             "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;");
     env->DeleteLocalRef(method);
+    auto object = env->FindClass("java/lang/Object");
+    object_class = (jclass) env->NewGlobalRef(object);
+    env->DeleteLocalRef(object);
+    auto object_array = env->FindClass("[Ljava/lang/Object;");
+    object_array_class = (jclass) env->NewGlobalRef(object_array);
+    env->DeleteLocalRef(object_array);
+    // resolved before any hook, hooks may be created on several threads at once
+    auto hooker = Context::GetInstance()->FindClassFromCurrentLoader(
+            env, "org.lsposed.lspd.impl.LSPosedBridge$NativeHooker");
+    if (hooker.get() == nullptr) {
+        LOGE("Failed to find NativeHooker, hook bridge not registered");
+        return;
+    }
+    snapshot_field = env->GetFieldID(hooker.get(), "callbacksSnapshot", "[[Ljava/lang/Object;");
+    if (!snapshot_field) {
+        env->ExceptionClear();
+        LOGE("Failed to find NativeHooker.callbacksSnapshot, hook bridge not registered");
+        return;
+    }
     REGISTER_LSP_NATIVE_METHODS(HookBridge);
 }
 } // namespace lspd
@@ -54,6 +54,7 @@ import java.lang.reflect.Method;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
@@ -276,6 +277,7 @@ public class ConfigFileManager {
             }
             zipAddFile(os, dbPath.toPath(), configDirPath);
             ConfigManager.getInstance().exportScopes(os);
+            zipAddHookStats(os);
         } catch (Throwable e) {
             Log.w(TAG, "get log", e);
             throw new IllegalStateException(e);
@@ -292,6 +294,24 @@ public class ConfigFileManager {
         }
     }
 
+    private static void zipAddHookStats(ZipOutputStream os) {
+        var stats = ServiceManager.getApplicationService().getHookStats();
+        if (stats.isEmpty()) return;
+        var sb = new StringBuilder();
+        for (var stat : stats) {
+            sb.append(String.format(Locale.ROOT, "%s(%d) %s calls=%d total=%dus max=%dus exceptions=%d%n",
+                    stat.processName, stat.pid, stat.method, stat.callCount,
+                    stat.totalCallbackNanos / 1000, stat.maxCallbackNanos / 1000, stat.exceptionCount));
+        }
+        try {
+            os.putNextEntry(new ZipEntry("hook_stats.txt"));
+            os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            os.closeEntry();
+        } catch (IOException e) {
+            Log.w(TAG, "hook_stats.txt", e);
+        }
+    }
+
     private static void zipAddFile(ZipOutputStream os, Path path, Path base) {
         var name = base.relativize(path).toString();
         if (Files.isDirectory(path)) {
@@ -298,6 +298,20 @@ public class ConfigManager {
         updateManager(false);
 
         cacheHandler.post(this::getPreloadDex);
+        cacheHandler.post(this::watchModulePrefs);
+    }
+
+    // prefs written before the daemon started still need their snapshots refreshed
+    private void watchModulePrefs() {
+        var userDirs = miscPath.toFile().listFiles((dir, name) -> name.startsWith("prefs"));
+        if (userDirs == null) return;
+        for (var userDir : userDirs) {
+            var moduleDirs = userDir.listFiles(File::isDirectory);
+            if (moduleDirs == null) continue;
+            for (var moduleDir : moduleDirs) {
+                PrefsSnapshotObserver.watch(moduleDir.getPath());
+            }
+        }
     }
 
     public synchronized void updateManager(boolean uninstalled) {
@@ -1107,6 +1121,7 @@ public class ConfigManager {
                         Log.e(TAG, Log.getStackTraceString(e));
                     }
                 });
+                PrefsSnapshotObserver.watch(path.toString());
             } catch (IOException e) {
                 Log.e(TAG, Log.getStackTraceString(e));
             }
@@ -1142,6 +1157,7 @@ public class ConfigManager {
     private void removeModulePrefs(int uid, String packageName) throws IOException {
         if (packageName == null) return;
         var path = Paths.get(getPrefsPath(packageName, uid));
+        PrefsSnapshotObserver.unwatch(path.toString());
         ConfigFileManager.deleteFolderIfExists(path);
     }
 
@@ -0,0 +1,283 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2026 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.service;
+
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Results of dex scans persisted by modules, one directory per module version and APK content:
+ * {@code scan_cache/<module version>/<sha-256 of the apk>/<sha-256 of the key>}.
+ * A module update drops the whole cache. Each module has a quota of bytes and entries, entries
+ * used least recently and the ones not used for a while are dropped on write.
+ */
+class DexScanCache {
+    static final String SCAN_CACHE_DIR = "scan_cache";
+    static final int MAX_VALUE_SIZE = 512 * 1024;
+    static final long MAX_MODULE_SIZE = 8 * 1024 * 1024;
+    static final int MAX_MODULE_ENTRIES = 256;
+    static final long MAX_APK_SIZE = 1024L * 1024 * 1024;
+
+    private static final long EXPIRE_MS = TimeUnit.DAYS.toMillis(30);
+    private static final long TOUCH_INTERVAL_MS = TimeUnit.DAYS.toMillis(1);
+    private static final String TMP_SUFFIX = ".tmp";
+
+    // Hashing a large APK takes a while, so the hash is kept as long as the file is unchanged.
+    // Concurrent requests for the same file wait for a single hash instead of reading it again.
+    private static final Map<String, CompletableFuture<String>> apkHashes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<String>> eldest) {
+            return size() > 64;
+        }
+    };
+
+    // Guards the files of one module, keyed by user id and package name
+    private static final Map<String, Object> moduleLocks = new ConcurrentHashMap<>();
+
+    private DexScanCache() {
+    }
+
+    static byte[] get(String packageName, int userId, ParcelFileDescriptor apk, String key) throws RemoteException {
+        try {
+            if (apk == null || key == null) throw new RemoteException("Invalid arguments");
+            var versionDir = getVersionDir(packageName, userId);
+            // nothing to read, don't hash the apk
+            if (!versionDir.isDirectory()) return null;
+            var file = new File(new File(versionDir, getApkHash(apk)), hash(key.getBytes(StandardCharsets.UTF_8)));
+            synchronized (getModuleLock(packageName, userId)) {
+                if (!file.isFile()) return null;
+                var value = Files.readAllBytes(file.toPath());
+                long now = System.currentTimeMillis();
+                if (now - file.lastModified() > TOUCH_INTERVAL_MS) {
+                    // the modification time orders entries for eviction, a day is precise enough
+                    // noinspection ResultOfMethodCallIgnored
+                    file.setLastModified(now);
+                }
+                return value;
+            }
+        } catch (IOException | ErrnoException e) {
+            throw new RemoteException(e.getMessage());
+        } finally {
+            closeQuietly(apk);
+        }
+    }
+
+    static void put(String packageName, int userId, ParcelFileDescriptor apk, String key, byte[] value) throws RemoteException {
+        try {
+            if (apk == null || key == null || value == null || value.length > MAX_VALUE_SIZE) {
+                throw new RemoteException("Invalid arguments");
+            }
+            var versionDir = getVersionDir(packageName, userId);
+            var dir = new File(versionDir, getApkHash(apk));
+            var file = new File(dir, hash(key.getBytes(StandardCharsets.UTF_8)));
+            synchronized (getModuleLock(packageName, userId)) {
+                if (!versionDir.isDirectory()) {
+                    // the module changed, results of its previous version are of no use
+                    deleteRecursively(versionDir.getParentFile());
+                }
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Failed to create " + dir);
+                }
+                var tmp = new File(dir, file.getName() + TMP_SUFFIX);
+                try (var out = new FileOutputStream(tmp)) {
+                    out.write(value);
+                    out.getFD().sync();
+                }
+                if (!tmp.renameTo(file)) {
+                    // noinspection ResultOfMethodCallIgnored
+                    tmp.delete();
+                    throw new IOException("Failed to write " + file);
+                }
+                trim(versionDir, file);
+            }
+        } catch (IOException | ErrnoException e) {
+            throw new RemoteException(e.getMessage());
+        } finally {
+            closeQuietly(apk);
+        }
+    }
+
+    private static File getVersionDir(String packageName, int userId) throws IOException, RemoteException {
+        var root = ConfigFileManager.resolveModuleDir(packageName, SCAN_CACHE_DIR, userId, -1).toFile();
+        return new File(root, getModuleVersion(packageName, userId));
+    }
+
+    private static Object getModuleLock(String packageName, int userId) {
+        return moduleLocks.computeIfAbsent(userId + "/" + packageName, k -> new Object());
+    }
+
+    private static String getModuleVersion(String packageName, int userId) throws RemoteException {
+        var info = PackageService.getPackageInfo(packageName, 0, userId);
+        if (info == null) throw new RemoteException("Module not installed: " + packageName);
+        // lastUpdateTime also tells apart reinstalls of the same version, common while developing
+        // noinspection deprecation
+        return info.versionCode + "-" + info.lastUpdateTime;
+    }
+
+    private static String getApkHash(ParcelFileDescriptor apk) throws IOException, ErrnoException {
+        var fd = apk.getFileDescriptor();
+        var stat = Os.fstat(fd);
+        // the descriptor comes from the hooked process, a device or pipe would never end
+        if (!OsConstants.S_ISREG(stat.st_mode) || stat.st_size > MAX_APK_SIZE) {
+            throw new IOException("Not an apk");
+        }
+        var id = stat.st_dev + ":" + stat.st_ino + ":" + stat.st_size + ":" + stat.st_mtim.tv_sec + "." + stat.st_mtim.tv_nsec;
+        CompletableFuture<String> hash;
+        CompletableFuture<String> computing = null;
+        synchronized (apkHashes) {
+            hash = apkHashes.get(id);
+            if (hash == null) {
+                hash = computing = new CompletableFuture<>();
+                apkHashes.put(id, hash);
+            }
+        }
+        if (computing != null) {
+            try {
+                computing.complete(hashFile(fd, stat.st_size));
+            } catch (IOException | ErrnoException | RuntimeException e) {
+                synchronized (apkHashes) {
+                    apkHashes.remove(id, computing);
+                }
+                computing.completeExceptionally(e);
+                throw e;
+            }
+        }
+        try {
+            return hash.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to hash the apk", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing the apk", e);
+        }
+    }
+
+    private static String hashFile(FileDescriptor fd, long size) throws IOException, ErrnoException {
+        var digest = newDigest();
+        var buffer = new byte[64 * 1024];
+        long offset = 0;
+        // stops at the size the hash is cached for, even if the file grows meanwhile
+        for (int n; offset < size && (n = Os.pread(fd, buffer, 0, (int) Math.min(buffer.length, size - offset), offset)) > 0; offset += n) {
+            digest.update(buffer, 0, n);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Drops expired entries, then the least recently used ones until the module fits its quota.
+     * Never drops {@code current}, the entry just written. Called with the module lock held.
+     */
+    private static void trim(File versionDir, File current) {
+        var dirs = versionDir.listFiles();
+        if (dirs == null) return;
+        long now = System.currentTimeMillis();
+        var entries = new ArrayList<File>();
+        long size = current.length();
+        for (var dir : dirs) {
+            var files = dir.listFiles();
+            if (files == null) continue;
+            for (var file : files) {
+                if (file.equals(current)) continue;
+                if (file.getName().endsWith(TMP_SUFFIX) || now - file.lastModified() > EXPIRE_MS) {
+                    // leftovers of an interrupted write can go too, no write is running
+                    // noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                } else {
+                    entries.add(file);
+                    size += file.length();
+                }
+            }
+        }
+        entries.sort(Comparator.comparingLong(File::lastModified));
+        int count = entries.size() + 1;
+        for (var entry : entries) {
+            if (size <= MAX_MODULE_SIZE && count <= MAX_MODULE_ENTRIES) break;
+            size -= entry.length();
+            count--;
+            // noinspection ResultOfMethodCallIgnored
+            entry.delete();
+        }
+        for (var dir : dirs) {
+            var files = dir.list();
+            if (files != null && files.length == 0) {
+                // noinspection ResultOfMethodCallIgnored
+                dir.delete();
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        var children = file.listFiles();
+        if (children != null) {
+            for (var child : children) {
+                deleteRecursively(child);
+            }
+        }
+        // noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private static String hash(byte[] data) {
+        return toHex(newDigest().digest(data));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        var sb = new StringBuilder(bytes.length * 2);
+        for (var b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor pfd) {
+        try {
+            if (pfd != null) pfd.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
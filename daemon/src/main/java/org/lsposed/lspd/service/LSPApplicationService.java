@@ -31,12 +31,17 @@ import android.util.Pair;
 
 import androidx.annotation.NonNull;
 
+import org.lsposed.lspd.models.HookStat;
 import org.lsposed.lspd.models.Module;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 public class LSPApplicationService extends ILSPApplicationService.Stub {
@@ -44,12 +49,15 @@ public class LSPApplicationService extends ILSPApplicationService.Stub {
     final static int OBFUSCATION_MAP_TRANSACTION_CODE = 724533732;
     // key: <uid, pid>
     private final static Map<Pair<Integer, Integer>, ProcessInfo> processes = new ConcurrentHashMap<>();
+    private static volatile boolean hookStatsEnabled = false;
+    private static final long HOOK_STATS_TIMEOUT_MS = 1000;
 
     static class ProcessInfo implements DeathRecipient {
         final int uid;
         final int pid;
         final String processName;
         final IBinder heartBeat;
+        volatile IHookStatsProvider hookStatsProvider;
 
         ProcessInfo(int uid, int pid, String processName, IBinder heartBeat) throws RemoteException {
             this.uid = uid;
@@ -152,6 +160,83 @@ public class LSPApplicationService extends ILSPApplicationService.Stub {
         return ConfigManager.getInstance().getManagerApk();
     }
 
+    @Override
+    public void registerHookStatsProvider(int pid, IBinder provider) {
+        var uid = getCallingUid();
+        var processInfo = processes.get(new Pair<>(uid, pid));
+        if (processInfo == null) {
+            Log.w(TAG, "non-authorized hook stats provider: uid=" + uid + " pid=" + pid);
+            return;
+        }
+        var statsProvider = IHookStatsProvider.Stub.asInterface(provider);
+        processInfo.hookStatsProvider = statsProvider;
+        // stats are off by default, so only processes registering while they are on hear of it
+        if (hookStatsEnabled) {
+            try {
+                statsProvider.setEnabled(true);
+            } catch (RemoteException e) {
+                Log.w(TAG, "set hook stats enabled for " + processInfo, e);
+            }
+        }
+    }
+
+    public void setHookStatsEnabled(boolean enabled) {
+        hookStatsEnabled = enabled;
+        for (var processInfo : processes.values()) {
+            var provider = processInfo.hookStatsProvider;
+            if (provider == null) continue;
+            try {
+                provider.setEnabled(enabled);
+            } catch (RemoteException e) {
+                Log.w(TAG, "set hook stats enabled for " + processInfo, e);
+            }
+        }
+    }
+
+    /**
+     * Asks every process for its stats at once and returns what arrived within
+     * {@link #HOOK_STATS_TIMEOUT_MS}. Frozen or hung processes are left out.
+     */
+    public List<HookStat> getHookStats() {
+        var stats = Collections.synchronizedList(new ArrayList<HookStat>());
+        var requested = new ArrayList<ProcessInfo>();
+        for (var processInfo : processes.values()) {
+            if (processInfo.hookStatsProvider != null) requested.add(processInfo);
+        }
+        var pending = new CountDownLatch(requested.size());
+        for (var processInfo : requested) {
+            var answered = new AtomicBoolean();
+            var callback = new IHookStatsCallback.Stub() {
+                @Override
+                public void onHookStats(List<HookStat> processStats, boolean last) {
+                    if (answered.get()) return;
+                    for (var stat : processStats) {
+                        stat.processName = processInfo.processName;
+                        stat.pid = processInfo.pid;
+                    }
+                    stats.addAll(processStats);
+                    if (last && answered.compareAndSet(false, true)) pending.countDown();
+                }
+            };
+            try {
+                processInfo.hookStatsProvider.requestHookStats(callback);
+            } catch (RemoteException e) {
+                Log.w(TAG, "get hook stats of " + processInfo, e);
+                pending.countDown();
+            }
+        }
+        try {
+            if (!pending.await(HOOK_STATS_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, pending.getCount() + " processes didn't report hook stats in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (stats) {
+            return new ArrayList<>(stats);
+        }
+    }
+
     public boolean hasRegister(int uid, int pid) {
         return processes.containsKey(new Pair<>(uid, pid));
     }
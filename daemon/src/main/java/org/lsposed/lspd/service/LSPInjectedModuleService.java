@@ -4,16 +4,19 @@ import static org.lsposed.lspd.service.LSPModuleService.FILES_DIR;
 import static org.lsposed.lspd.service.PackageService.PER_USER_RANGE;
 
 import android.os.Binder;
-import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 
 import org.lsposed.lspd.models.Module;
+import org.lsposed.lspd.util.PreferenceDelta;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import io.github.libxposed.service.IXposedService;
 
@@ -21,9 +24,68 @@ public class LSPInjectedModuleService extends ILSPInjectedModuleService.Stub {
 
     private static final String TAG = "LSPosedInjectedModuleService";
 
+    // Updates arriving within this window are sent to a process as one delta
+    private static final long COALESCE_DELAY_MS = 50;
+    private static final ScheduledThreadPoolExecutor notifier = new ScheduledThreadPoolExecutor(4, r -> {
+        var thread = new Thread(r, "RemotePreferenceNotifier");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        notifier.setKeepAliveTime(10, TimeUnit.SECONDS);
+        notifier.allowCoreThreadTimeOut(true);
+    }
+
     private final String mPackageName;
 
-    Map<String, Set<IRemotePreferenceCallback>> callbacks = new ConcurrentHashMap<>();
+    Map<String, Set<PendingUpdate>> callbacks = new ConcurrentHashMap<>();
+
+    /**
+     * Changes not yet sent to one process. Deliveries to a single process never overlap, so
+     * its deltas arrive in order, while different processes are notified in parallel.
+     */
+    private static final class PendingUpdate {
+        final IRemotePreferenceCallback callback;
+        final Set<PendingUpdate> group;
+        private Map<String, Object> changes = new HashMap<>();
+        private boolean scheduled = false;
+
+        PendingUpdate(IRemotePreferenceCallback callback, Set<PendingUpdate> group) {
+            this.callback = callback;
+            this.group = group;
+        }
+
+        synchronized void add(Map<String, Object> values) {
+            changes.putAll(values);
+            if (!scheduled) {
+                scheduled = true;
+                notifier.schedule(this::send, COALESCE_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void send() {
+            Map<String, Object> values;
+            synchronized (this) {
+                values = changes;
+                changes = new HashMap<>();
+            }
+            try {
+                callback.onUpdate(PreferenceDelta.encode(values));
+            } catch (RemoteException e) {
+                group.remove(this);
+            } catch (Throwable e) {
+                Log.e(TAG, "send remote preferences: ", e);
+            }
+            synchronized (this) {
+                if (changes.isEmpty()) {
+                    scheduled = false;
+                } else {
+                    notifier.schedule(this::send, COALESCE_DELAY_MS, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
 
     LSPInjectedModuleService(String packageName) {
         mPackageName = packageName;
@@ -35,20 +97,20 @@ public class LSPInjectedModuleService extends ILSPInjectedModuleService.Stub {
     }
 
     @Override
-    public Bundle requestRemotePreferences(String group, IRemotePreferenceCallback callback) {
-        var bundle = new Bundle();
+    public byte[] requestRemotePreferences(String group, IRemotePreferenceCallback callback) {
         var userId = Binder.getCallingUid() / PER_USER_RANGE;
-        bundle.putSerializable("map", ConfigManager.getInstance().getModulePrefs(mPackageName, userId, group));
+        var prefs = PreferenceDelta.encode(ConfigManager.getInstance().getModulePrefs(mPackageName, userId, group));
         if (callback != null) {
             var groupCallbacks = callbacks.computeIfAbsent(group, k -> ConcurrentHashMap.newKeySet());
-            groupCallbacks.add(callback);
+            var pending = new PendingUpdate(callback, groupCallbacks);
+            groupCallbacks.add(pending);
             try {
-                callback.asBinder().linkToDeath(() -> groupCallbacks.remove(callback), 0);
+                callback.asBinder().linkToDeath(() -> groupCallbacks.remove(pending), 0);
             } catch (RemoteException e) {
                 Log.w(TAG, "requestRemotePreferences: ", e);
             }
         }
-        return bundle;
+        return prefs;
     }
 
     @Override
@@ -76,15 +138,27 @@ public class LSPInjectedModuleService extends ILSPInjectedModuleService.Stub {
         }
     }
 
-    void onUpdateRemotePreferences(String group, Bundle diff) {
+    @Override
+    public byte[] getDexScanCache(ParcelFileDescriptor apk, String key) throws RemoteException {
+        var userId = Binder.getCallingUid() / PER_USER_RANGE;
+        return DexScanCache.get(mPackageName, userId, apk, key);
+    }
+
+    @Override
+    public void putDexScanCache(ParcelFileDescriptor apk, String key, byte[] value) throws RemoteException {
+        var userId = Binder.getCallingUid() / PER_USER_RANGE;
+        DexScanCache.put(mPackageName, userId, apk, key, value);
+    }
+
+    /**
+     * Queues changed values, {@code null} for removed keys, for every process that listens to
+     * the group. Returns without waiting for any of them.
+     */
+    void onUpdateRemotePreferences(String group, Map<String, Object> values) {
         var groupCallbacks = callbacks.get(group);
         if (groupCallbacks != null) {
-            for (var callback : groupCallbacks) {
-                try {
-                    callback.onUpdate(diff);
-                } catch (RemoteException e) {
-                    groupCallbacks.remove(callback);
-                }
+            for (var pending : groupCallbacks) {
+                pending.add(values);
             }
         }
     }
@@ -51,6 +51,7 @@ import androidx.annotation.NonNull;
 import org.lsposed.daemon.BuildConfig;
 import org.lsposed.lspd.ILSPManagerService;
 import org.lsposed.lspd.models.Application;
+import org.lsposed.lspd.models.HookStat;
 import org.lsposed.lspd.models.UserInfo;
 import org.lsposed.lspd.util.Utils;
 
@@ -619,6 +620,16 @@ public class LSPManagerService extends ILSPManagerService.Stub {
         }
     }
 
+    @Override
+    public ParcelableListSlice<HookStat> getHookStats() {
+        return new ParcelableListSlice<>(ServiceManager.getApplicationService().getHookStats());
+    }
+
+    @Override
+    public void setHookStatsEnabled(boolean enabled) {
+        ServiceManager.getApplicationService().setHookStatsEnabled(enabled);
+    }
+
     @Override
     public boolean performDexOptMode(String packageName) throws RemoteException {
         return PackageService.performDexOptMode(packageName);
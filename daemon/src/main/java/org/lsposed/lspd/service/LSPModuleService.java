@@ -34,6 +34,7 @@ import androidx.annotation.NonNull;
 
 import org.lsposed.daemon.BuildConfig;
 import org.lsposed.lspd.models.Module;
+import org.lsposed.lspd.util.PreferenceDelta;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -217,8 +218,10 @@ public class LSPModuleService extends IXposedService.Stub {
             }
         }
         try {
+            // reject values hooked processes can't receive before storing them
+            PreferenceDelta.checkValues(values);
             ConfigManager.getInstance().updateModulePrefs(loadedModule.packageName, userId, group, values);
-            ((LSPInjectedModuleService) loadedModule.service).onUpdateRemotePreferences(group, diff);
+            ((LSPInjectedModuleService) loadedModule.service).onUpdateRemotePreferences(group, values);
         } catch (Throwable e) {
             throw new RemoteException(e.getMessage());
         }
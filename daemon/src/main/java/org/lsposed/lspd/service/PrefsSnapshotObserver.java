@@ -0,0 +1,199 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2026 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.service;
+
+import static org.lsposed.lspd.service.ServiceManager.TAG;
+
+import android.os.FileObserver;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.android.internal.util.XmlUtils;
+
+import org.lsposed.lspd.util.PrefsSnapshot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a {@link PrefsSnapshot} next to every preferences XML file of a module prefs directory,
+ * so that hooked processes can map it instead of parsing the XML.
+ */
+class PrefsSnapshotObserver extends FileObserver {
+    private static final int EVENTS = CLOSE_WRITE | MOVED_TO | MOVED_FROM | DELETE;
+    // FileObserver stops watching once collected
+    private static final Map<String, PrefsSnapshotObserver> observers = new ConcurrentHashMap<>();
+
+    private final File dir;
+
+    @SuppressWarnings("deprecation")
+    private PrefsSnapshotObserver(File dir) {
+        super(dir.getPath(), EVENTS);
+        this.dir = dir;
+    }
+
+    /**
+     * Starts watching a prefs directory and brings the snapshots of its current files up to date.
+     */
+    static void watch(String path) {
+        observers.computeIfAbsent(path, p -> {
+            var observer = new PrefsSnapshotObserver(new File(p));
+            observer.startWatching();
+            var files = observer.dir.listFiles((d, name) -> name.endsWith(".xml"));
+            if (files != null) {
+                for (var file : files) {
+                    update(file);
+                }
+            }
+            return observer;
+        });
+    }
+
+    static void unwatch(String path) {
+        var observer = observers.remove(path);
+        if (observer != null) observer.stopWatching();
+    }
+
+    @Override
+    public void onEvent(int event, @Nullable String path) {
+        if (path == null || !path.endsWith(".xml")) return;
+        update(new File(dir, path));
+    }
+
+    private static synchronized void update(File file) {
+        var snapshot = PrefsSnapshot.getSnapshotFile(file);
+        FileDescriptor fd;
+        try {
+            fd = openRegularFile(file);
+        } catch (ErrnoException e) {
+            // the file is gone, or is not a file the daemon may read on the module's behalf
+            // noinspection ResultOfMethodCallIgnored
+            snapshot.delete();
+            return;
+        }
+        try {
+            // the stat is taken before reading, so a concurrent write leaves a snapshot that
+            // doesn't match and clients read the XML until the write's own event replaces it
+            var stat = Os.fstat(fd);
+            if (isCurrent(snapshot, stat)) return;
+            Map<String, ?> map;
+            try (var stream = new BufferedInputStream(new FileInputStream(fd), 16 * 1024)) {
+                // noinspection unchecked
+                map = XmlUtils.readMapXml(stream);
+            }
+            write(snapshot, map, stat);
+        } catch (Throwable e) {
+            Log.w(TAG, "failed to snapshot " + file, e);
+            // noinspection ResultOfMethodCallIgnored
+            snapshot.delete();
+        } finally {
+            closeQuietly(fd);
+        }
+    }
+
+    private static boolean isCurrent(File snapshot, StructStat stat) {
+        FileDescriptor fd;
+        try {
+            fd = openRegularFile(snapshot);
+        } catch (ErrnoException e) {
+            return false;
+        }
+        try (var stream = new FileInputStream(fd); var channel = stream.getChannel()) {
+            return PrefsSnapshot.open(channel).matches(stat.st_size, getMtime(stat), stat.st_ino);
+        } catch (Throwable ignored) {
+            return false;
+        } finally {
+            closeQuietly(fd);
+        }
+    }
+
+    /**
+     * Replaces the snapshot, owned by the owner of the XML file. The directory belongs to the
+     * module, so the temporary file is created exclusively instead of through a link placed
+     * there, and its owner and mode are set through the descriptor before it is renamed into
+     * place.
+     */
+    private static void write(File snapshot, Map<String, ?> map, StructStat stat) throws ErrnoException, IOException {
+        var tmp = new File(snapshot.getPath() + ".tmp");
+        // left by a failed update or placed by the module, unlinking never follows a link
+        // noinspection ResultOfMethodCallIgnored
+        tmp.delete();
+        var fd = Os.open(tmp.getPath(), OsConstants.O_WRONLY | OsConstants.O_CREAT | OsConstants.O_EXCL
+                | OsConstants.O_NOFOLLOW | OsConstants.O_CLOEXEC, 0600);
+        try {
+            try (var stream = new BufferedOutputStream(new FileOutputStream(fd), 16 * 1024)) {
+                PrefsSnapshot.write(stream, map, stat.st_size, getMtime(stat), stat.st_ino);
+            }
+            Os.fchown(fd, stat.st_uid, stat.st_gid);
+            Os.fchmod(fd, stat.st_mode & 0777);
+            Os.fsync(fd);
+            Os.rename(tmp.getPath(), snapshot.getPath());
+        } catch (ErrnoException | IOException | RuntimeException e) {
+            // noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw e;
+        } finally {
+            closeQuietly(fd);
+        }
+    }
+
+    /**
+     * Opens a regular file for reading without following a link. A FIFO placed by the module
+     * doesn't block the open, and is rejected like any other special file.
+     */
+    private static FileDescriptor openRegularFile(File file) throws ErrnoException {
+        var fd = Os.open(file.getPath(), OsConstants.O_RDONLY | OsConstants.O_NOFOLLOW
+                | OsConstants.O_NONBLOCK | OsConstants.O_CLOEXEC, 0);
+        try {
+            if (!OsConstants.S_ISREG(Os.fstat(fd).st_mode)) {
+                throw new ErrnoException("open", OsConstants.EINVAL);
+            }
+        } catch (ErrnoException e) {
+            closeQuietly(fd);
+            throw e;
+        }
+        return fd;
+    }
+
+    // the streams wrapping a descriptor don't own it, so it is closed here
+    private static void closeQuietly(FileDescriptor fd) {
+        try {
+            Os.close(fd);
+        } catch (ErrnoException ignored) {
+        }
+    }
+
+    // same millisecond precision as the client's stat
+    private static long getMtime(StructStat stat) {
+        return stat.st_mtim.tv_sec * 1000 + stat.st_mtim.tv_nsec / 1000000;
+    }
+}
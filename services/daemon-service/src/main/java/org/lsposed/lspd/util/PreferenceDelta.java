@@ -0,0 +1,86 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2026 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Wire format of remote preferences sent from the daemon to hooked processes: an entry count
+ * followed by keys and type tagged values, encoded like the entries of {@link PrefsSnapshot}.
+ * A {@code null} value stands for a removed key.
+ */
+public final class PreferenceDelta {
+    private PreferenceDelta() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if a value has a type that preferences can't hold.
+     */
+    public static byte[] encode(Map<String, ?> changes) {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(changes.size());
+            for (var entry : changes.entrySet()) {
+                PrefsSnapshot.writeString(out, entry.getKey());
+                PrefsSnapshot.writeValue(out, entry.getValue());
+            }
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IllegalArgumentException if a value has a type that preferences can't hold.
+     */
+    public static void checkValues(Map<String, ?> changes) {
+        for (var value : changes.values()) {
+            PrefsSnapshot.checkValue(value);
+        }
+    }
+
+    /**
+     * Passes every key and its new value, {@code null} if removed, to {@code consumer}.
+     * The whole delta is checked before the first entry is passed on.
+     */
+    public static void decode(byte[] delta, BiConsumer<String, Object> consumer) throws IOException {
+        var buffer = ByteBuffer.wrap(delta);
+        if (delta.length < 4) throw new IOException("Corrupted preference delta");
+        int count = buffer.getInt(0);
+        int offset = 4;
+        for (int i = 0; i < count; i++) {
+            offset = PrefsSnapshot.skipValue(buffer, PrefsSnapshot.skipString(buffer, offset));
+        }
+        offset = 4;
+        for (int i = 0; i < count; i++) {
+            var key = PrefsSnapshot.readString(buffer, offset);
+            int valueOffset = PrefsSnapshot.skipString(buffer, offset);
+            consumer.accept(key, PrefsSnapshot.readValue(buffer, valueOffset));
+            offset = PrefsSnapshot.skipValue(buffer, valueOffset);
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2026 LSPosed Contributors
+ */
+
+package org.lsposed.lspd.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only binary copy of a shared preferences XML file, written by the daemon next to the
+ * file and memory mapped by hooked processes instead of parsing the XML.
+ *
+ * <p>Layout, big endian: magic, version, size, mtime and inode of the source file, entry count,
+ * then an index of {@code (key hash, entry offset)} sorted by hash, then the entries. Each entry
+ * is the UTF-8 key, a type tag and the value. Lookups binary search the index and only decode
+ * the requested value, {@link #decode()} decodes all of them once for frequent lookups.
+ */
+public final class PrefsSnapshot extends AbstractMap<String, Object> {
+    public static final String SUFFIX = ".snapshot";
+
+    private static final int MAGIC = 0x4c535050; // LSPP
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 4;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_FLOAT = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+    private static final byte TYPE_STRING_SET = 6;
+
+    private final ByteBuffer buffer;
+    private final long sourceSize;
+    private final long sourceTime;
+    private final long sourceInode;
+    private final int count;
+    private Set<Entry<String, Object>> entrySet;
+
+    private PrefsSnapshot(ByteBuffer buffer) throws IOException {
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a prefs snapshot");
+        }
+        this.buffer = buffer;
+        sourceSize = buffer.getLong(8);
+        sourceTime = buffer.getLong(16);
+        sourceInode = buffer.getLong(24);
+        count = buffer.getInt(32);
+        if (count < 0 || HEADER_SIZE + (long) count * 8 > buffer.limit()) {
+            throw new IOException("Corrupted prefs snapshot");
+        }
+    }
+
+    /**
+     * Returns the snapshot file that belongs to the given preferences file.
+     */
+    public static File getSnapshotFile(File prefsFile) {
+        return new File(prefsFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * Maps a snapshot file into memory. The mapping stays valid after the file is replaced.
+     */
+    public static PrefsSnapshot open(File file) throws IOException {
+        try (var stream = new FileInputStream(file); var channel = stream.getChannel()) {
+            return open(channel);
+        }
+    }
+
+    /**
+     * Maps the file behind an open channel into memory, the channel may be closed afterwards.
+     */
+    public static PrefsSnapshot open(FileChannel channel) throws IOException {
+        return new PrefsSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+
+    /**
+     * Whether this snapshot was made from the source file in the given state.
+     */
+    public boolean matches(long size, long mtime, long inode) {
+        return sourceSize == size && sourceTime == mtime && sourceInode == inode;
+    }
+
+    /**
+     * Serializes the map to {@code stream}. Readers map the file as soon as it exists, so it
+     * should be written elsewhere and renamed into place.
+     *
+     * @throws IllegalArgumentException if a value has a type that preferences can't hold.
+     */
+    public static void write(OutputStream stream, Map<String, ?> map, long size, long mtime, long inode) throws IOException {
+        var keys = new ArrayList<>(map.keySet());
+        keys.sort((a, b) -> Integer.compare(a.hashCode(), b.hashCode()));
+
+        var entries = new ByteArrayOutputStream();
+        var out = new DataOutputStream(entries);
+        var offsets = new int[keys.size()];
+        int base = HEADER_SIZE + keys.size() * 8;
+        for (int i = 0; i < keys.size(); i++) {
+            var key = keys.get(i);
+            offsets[i] = base + out.size();
+            writeString(out, key);
+            writeValue(out, map.get(key));
+        }
+
+        var header = new DataOutputStream(stream);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeLong(size);
+        header.writeLong(mtime);
+        header.writeLong(inode);
+        header.writeInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            header.writeInt(keys.get(i).hashCode());
+            header.writeInt(offsets[i]);
+        }
+        entries.writeTo(header);
+        header.flush();
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static void checkValue(Object value) {
+        if (value == null || value instanceof String || value instanceof Integer || value instanceof Long
+                || value instanceof Float || value instanceof Boolean) {
+            return;
+        }
+        if (!(value instanceof Set)) {
+            throw new IllegalArgumentException("Unsupported value type " + value.getClass());
+        }
+        for (var element : (Set<?>) value) {
+            if (!(element instanceof String)) {
+                throw new IllegalArgumentException("Unsupported set element " + element);
+            }
+        }
+    }
+
+    static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Set) {
+            out.writeByte(TYPE_STRING_SET);
+            var set = (Set<?>) value;
+            out.writeInt(set.size());
+            for (var element : set) {
+                if (!(element instanceof String)) {
+                    throw new IllegalArgumentException("Unsupported set element " + element);
+                }
+                writeString(out, (String) element);
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported value type " + value.getClass());
+        }
+    }
+
+    static String readString(ByteBuffer buffer, int offset) {
+        int length = buffer.getInt(offset);
+        var bytes = new byte[length];
+        var view = buffer.duplicate();
+        view.position(offset + 4);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes the value whose type tag is at {@code offset}.
+     */
+    static Object readValue(ByteBuffer buffer, int offset) {
+        byte type = buffer.get(offset++);
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_STRING:
+                return readString(buffer, offset);
+            case TYPE_INT:
+                return buffer.getInt(offset);
+            case TYPE_LONG:
+                return buffer.getLong(offset);
+            case TYPE_FLOAT:
+                return buffer.getFloat(offset);
+            case TYPE_BOOLEAN:
+                return buffer.get(offset) != 0;
+            case TYPE_STRING_SET:
+                int size = buffer.getInt(offset);
+                offset += 4;
+                var set = new HashSet<String>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    int length = buffer.getInt(offset);
+                    set.add(readString(buffer, offset));
+                    offset += 4 + length;
+                }
+                return set;
+            default:
+                throw new IllegalStateException("Unknown value type " + type);
+        }
+    }
+
+    /**
+     * Returns the end of the value whose type tag is at {@code offset}, checking that it lies
+     * within the buffer without decoding it.
+     */
+    static int skipValue(ByteBuffer buffer, int offset) throws IOException {
+        int limit = buffer.limit();
+        if (offset < 0 || offset >= limit) throw new IOException("Corrupted prefs data");
+        long end = offset + 1;
+        byte type = buffer.get(offset);
+        switch (type) {
+            case TYPE_NULL:
+                break;
+            case TYPE_STRING:
+                end = skipString(buffer, end);
+                break;
+            case TYPE_BOOLEAN:
+                end += 1;
+                break;
+            case TYPE_INT:
+            case TYPE_FLOAT:
+                end += 4;
+                break;
+            case TYPE_LONG:
+                end += 8;
+                break;
+            case TYPE_STRING_SET:
+                if (end + 4 > limit) throw new IOException("Corrupted prefs data");
+                int size = buffer.getInt((int) end);
+                end += 4;
+                for (int i = 0; i < size; i++) {
+                    end = skipString(buffer, end);
+                }
+                break;
+            default:
+                throw new IOException("Unknown value type " + type);
+        }
+        if (end > limit) throw new IOException("Corrupted prefs data");
+        return (int) end;
+    }
+
+    static int skipString(ByteBuffer buffer, long offset) throws IOException {
+        if (offset < 0 || offset + 4 > buffer.limit()) throw new IOException("Corrupted prefs data");
+        int length = buffer.getInt((int) offset);
+        if (length < 0 || offset + 4 + length > buffer.limit()) throw new IOException("Corrupted prefs data");
+        return (int) (offset + 4 + length);
+    }
+
+    private int getEntryOffset(int index) {
+        return buffer.getInt(HEADER_SIZE + index * 8 + 4);
+    }
+
+    private int findEntry(Object key) {
+        if (!(key instanceof String)) return -1;
+        int hash = key.hashCode();
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midHash = buffer.getInt(HEADER_SIZE + mid * 8);
+            if (midHash < hash) {
+                low = mid + 1;
+            } else if (midHash > hash) {
+                high = mid - 1;
+            } else {
+                // walk back to the first entry with this hash, then check every collision
+                while (mid > 0 && buffer.getInt(HEADER_SIZE + (mid - 1) * 8) == hash) mid--;
+                for (; mid < count && buffer.getInt(HEADER_SIZE + mid * 8) == hash; mid++) {
+                    int offset = getEntryOffset(mid);
+                    if (keyEquals((String) key, offset)) return offset;
+                }
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the key of the entry at {@code offset} in place. Keys are mostly ASCII, only
+     * others are decoded to compare them.
+     */
+    private boolean keyEquals(String key, int offset) {
+        int length = buffer.getInt(offset);
+        int n = key.length();
+        // a char takes at least one byte, an ASCII one exactly one
+        if (length < n) return false;
+        int position = offset + 4;
+        for (int i = 0; i < length; i++) {
+            byte b = buffer.get(position + i);
+            if (b < 0) return key.equals(readString(buffer, offset));
+            if (i >= n || key.charAt(i) != b) return false;
+        }
+        return length == n;
+    }
+
+    private Object readValue(int offset) {
+        return readValue(buffer, offset + 4 + buffer.getInt(offset));
+    }
+
+    @Override
+    public Object get(Object key) {
+        int offset = findEntry(key);
+        return offset < 0 ? null : readValue(offset);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return findEntry(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new Iterator<>() {
+                        private int index = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return index < count;
+                        }
+
+                        @Override
+                        public Entry<String, Object> next() {
+                            if (index >= count) throw new NoSuchElementException();
+                            int offset = getEntryOffset(index++);
+                            return new SimpleImmutableEntry<>(readString(buffer, offset), readValue(offset));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return count;
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /**
+     * Decodes every entry into a new map, checking that each lies within the file, so that a
+     * truncated or corrupted snapshot fails here rather than on a later lookup. Lookups in the
+     * result neither search the index nor decode a value again.
+     */
+    public Map<String, Object> decode() throws IOException {
+        var map = new HashMap<String, Object>(count * 4 / 3 + 1);
+        for (int i = 0; i < count; i++) {
+            int offset = getEntryOffset(i);
+            if (offset < HEADER_SIZE) throw new IOException("Corrupted prefs snapshot");
+            int valueOffset = skipString(buffer, offset);
+            skipValue(buffer, valueOffset);
+            map.put(readString(buffer, offset), readValue(buffer, valueOffset));
+        }
+        return map;
+    }
+}